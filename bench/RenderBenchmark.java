@@ -0,0 +1,433 @@
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import javax.swing.JScrollPane;
+import javax.swing.JViewport;
+import javax.swing.ScrollPaneConstants;
+
+// Render benchmark of ImagePanel, without a screen (runs on a CI box) :
+//    java -Djava.awt.headless=true -cp PPPE4SGDK.jar RenderBenchmark [image.png] [options]
+//
+// The panel is put in a scroll pane of the view size and painted into an offscreen image.
+// Scripted scenarios drive it through its real event handlers (scroll sweeps, zoom steps, lasso
+// selection, hotkey edits), each frame is timed, and the frame time distribution of each scenario
+// is printed. Below x0.5 the overlay is the mask image (x0.25 sweep, x0.125 hotkeys on the whole view).
+// Without image, a synthetic 16 colors image is used (--size, 4096x4096 by default).
+public class RenderBenchmark implements MainWindow {
+
+    private static final int DEFAULT_VIEW_WIDTH = 1920;
+    private static final int DEFAULT_VIEW_HEIGHT = 1080;
+    private static final int DEFAULT_IMAGE_SIZE = 4096;
+    private static final int DEFAULT_FRAMES = 200;
+
+    private static final double MIN_ZOOM = 1.0 / ImageHandler.TILE_SIZE;
+    private static final double MAX_ZOOM = 6;
+
+    private final ImagePanel panel;
+    private final JScrollPane scrollPane;
+    private final JViewport viewport;
+    private final BufferedImage frame;
+    private final int maxFrames; // frames per scroll direction
+
+    private boolean showGrid = true;
+    private boolean showPaletteIndex = true;
+    private boolean viewPaletteZero = false;
+
+    private final List<Scenario> results = new ArrayList<>();
+    private boolean measuring = false;
+
+
+
+    public RenderBenchmark(int viewWidth, int viewHeight, int maxFrames) {
+        this.maxFrames = maxFrames;
+        panel = new ImagePanel(this);
+        scrollPane = new JScrollPane(panel, ScrollPaneConstants.VERTICAL_SCROLLBAR_NEVER, ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+        scrollPane.setBorder(null);
+        scrollPane.setSize(viewWidth, viewHeight);
+        viewport = scrollPane.getViewport();
+        frame = new BufferedImage(viewWidth, viewHeight, BufferedImage.TYPE_INT_RGB);
+    }
+
+
+    public static void main(String[] args) {
+        if (!Boolean.getBoolean("java.awt.headless")) {
+            System.setProperty("java.awt.headless", "true"); // before any AWT class is initialized
+        }
+
+        String imagePath = null;
+        int viewWidth = DEFAULT_VIEW_WIDTH, viewHeight = DEFAULT_VIEW_HEIGHT;
+        int imageWidth = DEFAULT_IMAGE_SIZE, imageHeight = DEFAULT_IMAGE_SIZE;
+        int frames = DEFAULT_FRAMES;
+        boolean grid = true, labels = true;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                boolean hasValue = i + 1 < args.length;
+                if (args[i].equals("--view") && hasValue) {
+                    int[] size = parseSize(args[++i]);
+                    viewWidth = size[0];
+                    viewHeight = size[1];
+                } else if (args[i].equals("--size") && hasValue) {
+                    int[] size = parseSize(args[++i]);
+                    imageWidth = size[0];
+                    imageHeight = size[1];
+                } else if (args[i].equals("--frames") && hasValue) {
+                    frames = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--no-grid")) {
+                    grid = false;
+                } else if (args[i].equals("--no-labels")) {
+                    labels = false;
+                } else if (!args[i].startsWith("--") && imagePath == null) {
+                    imagePath = args[i];
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            if (frames < 1) {
+                throw new IllegalArgumentException("--frames must be at least 1");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.out.println("java -Djava.awt.headless=true -cp PPPE4SGDK.jar RenderBenchmark [image.png] [--size <w>x<h>] [--view <w>x<h>] [--frames <n>] [--no-grid] [--no-labels]");
+            System.exit(1);
+        }
+
+        BufferedImage image;
+        try {
+            image = imagePath != null ? ImageIO.read(new File(imagePath)) : createImage(imageWidth, imageHeight);
+        } catch (IOException e) {
+            System.err.println("Error: unable to read " + imagePath + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        if (image == null) {
+            System.err.println("Error: not an image: " + imagePath);
+            System.exit(1);
+        }
+
+        RenderBenchmark benchmark = new RenderBenchmark(viewWidth, viewHeight, frames);
+        benchmark.showGrid = grid;
+        benchmark.showPaletteIndex = labels;
+        int returnCode = benchmark.panel.setImage(image);
+        if (returnCode != 0) {
+            System.err.println("Error: " + ImageHandler.getErrorMessage(returnCode).trim());
+            System.exit(1);
+        }
+        benchmark.fillMask();
+
+        System.out.printf("Image %dx%d, view %dx%d, grid %s, palette labels %s%n",
+            image.getWidth(), image.getHeight(), viewWidth, viewHeight, grid ? "on" : "off", labels ? "on" : "off");
+
+        benchmark.runAll(); // warm up (JIT, render cache)
+        benchmark.measuring = true;
+        benchmark.runAll();
+        benchmark.printResults();
+    }
+
+
+    // One of each scenario
+    private void runAll() {
+        scrollSweep(1);
+        scrollSweep(0.5);
+        scrollSweep(3);
+        scrollSweep(0.25);
+        zoomSteps();
+        lassoSelection(10000);
+        hotkeyEdits(0.5);
+        hotkeyEdits(MIN_ZOOM);
+    }
+
+
+    // Scroll down then right, 24 * zoom pixels per frame (one mouse wheel step)
+    private void scrollSweep(double zoom) {
+        Scenario scenario = start("scroll sweep x" + zoom);
+        setZoom(zoom);
+        scrollTo(0, 0);
+
+        int step = Math.max(1, (int) (24 * zoom));
+        int maxY = Math.max(0, panel.getHeight() - viewport.getHeight());
+        int maxX = Math.max(0, panel.getWidth() - viewport.getWidth());
+        int frames = 0;
+        for (int y = step; y <= maxY && frames < maxFrames; y += step, frames++) {
+            scrollTo(0, y);
+            scenario.add(paintFrame());
+        }
+        for (int x = step; x <= maxX && frames < 2 * maxFrames; x += step, frames++) {
+            scrollTo(x, viewport.getViewPosition().y);
+            scenario.add(paintFrame());
+        }
+    }
+
+    // SHIFT + mouse wheel from x1 down to x0.125, up to x6 and back to x1
+    private void zoomSteps() {
+        Scenario scenario = start("zoom steps x" + MIN_ZOOM + " - x6");
+        setZoom(1);
+        scrollTo(0, 0);
+        for (int pass = 0; pass < 3; pass++) {
+            while (panel.getZoom() > MIN_ZOOM) {
+                wheel(1, true);
+                scenario.add(paintFrame());
+            }
+            while (panel.getZoom() < MAX_ZOOM) {
+                wheel(-1, true);
+                scenario.add(paintFrame());
+            }
+            while (panel.getZoom() > 1) {
+                wheel(1, true);
+                scenario.add(paintFrame());
+            }
+        }
+    }
+
+    // Mouse drag selecting a square of tileCount tiles, one frame per mouse move
+    private void lassoSelection(int tileCount) {
+        Scenario scenario = start("lasso " + tileCount + " tiles");
+        int side = (int) Math.ceil(Math.sqrt(tileCount));
+        // largest zoom showing the whole lasso
+        double zoom = MAX_ZOOM;
+        while (zoom > 0.5 && side * (int) (ImageHandler.TILE_SIZE * zoom) > Math.min(viewport.getWidth(), viewport.getHeight())) {
+            zoom -= 0.5;
+        }
+        setZoom(zoom);
+        scrollTo(0, 0);
+
+        int tileSize = (int) (ImageHandler.TILE_SIZE * zoom);
+        int end = side * tileSize - 1;
+        mouse(MouseEvent.MOUSE_PRESSED, 0, 0, 0);
+        int steps = Math.min(maxFrames, 60);
+        for (int i = 1; i <= steps; i++) {
+            mouse(MouseEvent.MOUSE_DRAGGED, end * i / steps, end * i / steps, InputEvent.BUTTON1_DOWN_MASK);
+            scenario.add(paintFrame());
+        }
+        mouse(MouseEvent.MOUSE_RELEASED, end, end, 0);
+        scenario.add(paintFrame());
+    }
+
+    // Palette / priority keys, undo and redo on a selection covering the whole view
+    private void hotkeyEdits(double zoom) {
+        setZoom(zoom);
+        scrollTo(0, 0);
+        mouse(MouseEvent.MOUSE_PRESSED, 0, 0, 0);
+        mouse(MouseEvent.MOUSE_DRAGGED, viewport.getWidth() - 1, viewport.getHeight() - 1, InputEvent.BUTTON1_DOWN_MASK);
+        mouse(MouseEvent.MOUSE_RELEASED, viewport.getWidth() - 1, viewport.getHeight() - 1, 0);
+        paintFrame();
+
+        Scenario scenario = start("hotkeys x" + zoom + ", " + panel.getSelectedTileCount() + " tiles");
+        int[] keys = { KeyEvent.VK_1, KeyEvent.VK_H, KeyEvent.VK_2, KeyEvent.VK_L, KeyEvent.VK_3, KeyEvent.VK_0 };
+        int rounds = Math.max(1, maxFrames / 10);
+        for (int round = 0; round < rounds; round++) {
+            for (int keyCode : keys) {
+                key(keyCode, 0);
+                scenario.add(paintFrame());
+            }
+            key(KeyEvent.VK_Z, InputEvent.CTRL_DOWN_MASK);
+            scenario.add(paintFrame());
+            key(KeyEvent.VK_Y, InputEvent.CTRL_DOWN_MASK);
+            scenario.add(paintFrame());
+        }
+    }
+
+
+    // Paint the visible part of the panel, as Swing does on repaint
+    private long paintFrame() {
+        Rectangle view = viewport.getViewRect();
+        long start = System.nanoTime();
+
+        Graphics2D g = frame.createGraphics();
+        g.translate(-view.x, -view.y);
+        g.setClip(view);
+        panel.paint(g);
+        g.dispose();
+
+        return System.nanoTime() - start;
+    }
+
+    private void setZoom(double zoom) {
+        while (panel.getZoom() < zoom) {
+            wheel(-1, true);
+        }
+        while (panel.getZoom() > zoom) {
+            wheel(1, true);
+        }
+        layoutView();
+    }
+
+    private void scrollTo(int x, int y) {
+        viewport.setViewPosition(new Point(x, y));
+        panel.doScrollbarUpdate();
+    }
+
+    // Size changes are laid out by Swing when the panel is in a window : done here
+    private void layoutView() {
+        scrollPane.doLayout();
+        panel.setSize(panel.getPreferredSize());
+        viewport.doLayout();
+    }
+
+    private void wheel(int rotation, boolean shift) {
+        panel.mouseWheelMoved(new MouseWheelEvent(panel, MouseEvent.MOUSE_WHEEL, System.currentTimeMillis(),
+            shift ? InputEvent.SHIFT_DOWN_MASK : 0, 0, 0, 0, false, MouseWheelEvent.WHEEL_UNIT_SCROLL, 1, rotation));
+        layoutView();
+    }
+
+    // x, y relative to the view
+    private void mouse(int id, int x, int y, int modifiers) {
+        Point position = viewport.getViewPosition();
+        panel.dispatchEvent(new MouseEvent(panel, id, System.currentTimeMillis(), modifiers,
+            position.x + x, position.y + y, 1, false, id == MouseEvent.MOUSE_DRAGGED ? MouseEvent.NOBUTTON : MouseEvent.BUTTON1));
+    }
+
+    private void key(int keyCode, int modifiers) {
+        panel.handleKeyPress(new KeyEvent(panel, KeyEvent.KEY_PRESSED, System.currentTimeMillis(), modifiers, keyCode, KeyEvent.CHAR_UNDEFINED));
+    }
+
+    // Random palettes and priorities, so every overlay element is drawn
+    private void fillMask() {
+        Mask mask = panel.getMask();
+        Random random = new Random(1);
+        for (int y = 0; y < mask.getHeight(); y++) {
+            for (int x = 0; x < mask.getWidth(); x++) {
+                mask.setTileProperties(x, y, random.nextInt(4), random.nextInt(2));
+            }
+        }
+        panel.refreshOverlay();
+    }
+
+    // 16 colors image, tiles of a few colors like a real background
+    private static BufferedImage createImage(int width, int height) {
+        byte[] reds = new byte[16], greens = new byte[16], blues = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            reds[i] = (byte) (i * 16);
+            greens[i] = (byte) (255 - i * 16);
+            blues[i] = (byte) (i * 37);
+        }
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED,
+            new IndexColorModel(8, 16, reds, greens, blues));
+
+        Random random = new Random(width * 31 + height);
+        byte[] row = new byte[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int tileColor = ((x / ImageHandler.TILE_SIZE) * 7 + (y / ImageHandler.TILE_SIZE) * 3) & 0x0F;
+                row[x] = (byte) (random.nextInt(4) == 0 ? random.nextInt(16) : tileColor);
+            }
+            image.getRaster().setDataElements(0, y, width, 1, row);
+        }
+        return image;
+    }
+
+    private static int[] parseSize(String size) {
+        int separator = size.indexOf('x');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Invalid size (expected <w>x<h>): " + size);
+        }
+        int width = Integer.parseInt(size.substring(0, separator));
+        int height = Integer.parseInt(size.substring(separator + 1));
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Invalid size: " + size);
+        }
+        return new int[] { width, height };
+    }
+
+
+    private Scenario start(String name) {
+        Scenario scenario = new Scenario(name);
+        if (measuring) {
+            results.add(scenario);
+        }
+        return scenario;
+    }
+
+    private void printResults() {
+        System.out.printf("%-28s %7s %9s %9s %9s %9s %9s %9s%n", "scenario", "frames", "mean ms", "p50", "p90", "p99", "max", "fps(p50)");
+        for (Scenario scenario : results) {
+            scenario.print();
+        }
+    }
+
+    // Frame times of one scenario
+    private static class Scenario {
+        private final String name;
+        private long[] frameTimes = new long[64];
+        private int count = 0;
+
+        Scenario(String name) {
+            this.name = name;
+        }
+
+        void add(long nanos) {
+            if (count == frameTimes.length) {
+                frameTimes = Arrays.copyOf(frameTimes, count * 2);
+            }
+            frameTimes[count++] = nanos;
+        }
+
+        void print() {
+            if (count == 0) {
+                System.out.printf("%-28s %7d%n", name, 0);
+                return;
+            }
+            long[] sorted = Arrays.copyOf(frameTimes, count);
+            Arrays.sort(sorted);
+            double total = 0;
+            for (long t : sorted) {
+                total += t;
+            }
+            double p50 = millis(percentile(sorted, 0.50));
+            System.out.printf("%-28s %7d %9.2f %9.2f %9.2f %9.2f %9.2f %9.0f%n", name, count, total / count / 1e6,
+                p50, millis(percentile(sorted, 0.90)), millis(percentile(sorted, 0.99)), millis(sorted[count - 1]),
+                p50 > 0 ? 1000 / p50 : 0);
+        }
+
+        private static long percentile(long[] sorted, double p) {
+            return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+        }
+
+        private static double millis(long nanos) {
+            return nanos / 1e6;
+        }
+    }
+
+
+    // MainWindow : view options of the benchmark, no menus nor status bar
+    @Override
+    public void updateStatusBar(String text) {
+    }
+
+    @Override
+    public void allowMenuChoice() {
+    }
+
+    @Override
+    public boolean getShowGrid() {
+        return showGrid;
+    }
+
+    @Override
+    public boolean getShowPaletteIndex() {
+        return showPaletteIndex;
+    }
+
+    @Override
+    public boolean getViewPaletteZero() {
+        return viewPaletteZero;
+    }
+
+    @Override
+    public boolean getUseMappedMask() {
+        return false;
+    }
+}
@@ -0,0 +1,205 @@
+package benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+// Calls to the editor classes.
+// They are in the default package, which can't be referenced from a package (and JMH refuses
+// benchmarks in the default package) : they are reached through method handles, the editor
+// types being seen as Object. Handles in static final fields are inlined by the JIT like
+// direct calls, so they don't change the measures.
+final class App {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final Class<?> MASK = appClass("Mask");
+
+    private static final MethodHandle NEW_IMAGE_HANDLER = constructor("ImageHandler");
+    private static final MethodHandle SET_IMAGE = method("ImageHandler", "setImage", BufferedImage.class);
+    private static final MethodHandle SET_MASK = method("ImageHandler", "setMask", MASK);
+    private static final MethodHandle IS_VALID_INDEXED_IMAGE = method("ImageHandler", "isValidIndexedImage", BufferedImage.class);
+    private static final MethodHandle APPLY_MASK = method("ImageHandler", "applyMask");
+    private static final MethodHandle GET_EXPORTED_IMAGE = method("ImageHandler", "getExportedImage");
+
+    private static final MethodHandle NEW_MASK = constructor("Mask", int.class, int.class);
+    private static final MethodHandle COPY_MASK = constructor("Mask", MASK);
+    private static final MethodHandle GET_TILE_PALETTE = method("Mask", "getTilePalette", int.class, int.class);
+    private static final MethodHandle GET_TILE_PRIORITY = method("Mask", "getTilePriority", int.class, int.class);
+    private static final MethodHandle SET_TILE_PROPERTIES = method("Mask", "setTileProperties", int.class, int.class, int.class, int.class);
+
+    private static final MethodHandle LOAD_MASK = method("AppFileHandler", "loadMask", String.class);
+    private static final MethodHandle WRITE_MASK = method("MaskFile", "write", MASK, File.class);
+
+    private App() {
+    }
+
+
+    static Object newImageHandler() {
+        try {
+            return (Object) NEW_IMAGE_HANDLER.invokeExact();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int setImage(Object imageHandler, BufferedImage image) {
+        try {
+            return (int) SET_IMAGE.invokeExact(imageHandler, image);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void setMask(Object imageHandler, Object mask) {
+        try {
+            SET_MASK.invokeExact(imageHandler, mask);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int isValidIndexedImage(Object imageHandler, BufferedImage image) {
+        try {
+            return (int) IS_VALID_INDEXED_IMAGE.invokeExact(imageHandler, image);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int applyMask(Object imageHandler) {
+        try {
+            return (int) APPLY_MASK.invokeExact(imageHandler);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static BufferedImage getExportedImage(Object imageHandler) {
+        try {
+            return (BufferedImage) GET_EXPORTED_IMAGE.invokeExact(imageHandler);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+
+    static Object newMask(int width, int height) {
+        try {
+            return (Object) NEW_MASK.invokeExact(width, height);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object copyMask(Object mask) {
+        try {
+            return (Object) COPY_MASK.invokeExact(mask);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int getTilePalette(Object mask, int x, int y) {
+        try {
+            return (int) GET_TILE_PALETTE.invokeExact(mask, x, y);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int getTilePriority(Object mask, int x, int y) {
+        try {
+            return (int) GET_TILE_PRIORITY.invokeExact(mask, x, y);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void setTileProperties(Object mask, int x, int y, int palette, int priority) {
+        try {
+            SET_TILE_PROPERTIES.invokeExact(mask, x, y, palette, priority);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+
+    // AppFileHandler.loadMask : returns null if the file can't be read
+    static Object loadMask(String path) {
+        try {
+            return (Object) LOAD_MASK.invokeExact(path);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // MaskFile.write, the file part of AppFileHandler.saveMask (which first asks for the file)
+    static void saveMask(Object mask, File file) {
+        try {
+            WRITE_MASK.invokeExact(mask, file);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+
+    private static Class<?> appClass(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Editor class not found: " + name, e);
+        }
+    }
+
+    private static MethodHandle method(String owner, String name, Class<?>... parameterTypes) {
+        try {
+            Method method = appClass(owner).getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true); // isValidIndexedImage is private
+            return erase(LOOKUP.unreflect(method));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Editor method not found: " + owner + "." + name, e);
+        }
+    }
+
+    private static MethodHandle constructor(String owner, Class<?>... parameterTypes) {
+        try {
+            Constructor<?> constructor = appClass(owner).getDeclaredConstructor(parameterTypes);
+            return erase(LOOKUP.unreflectConstructor(constructor));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Editor constructor not found: " + owner, e);
+        }
+    }
+
+    // Editor types (default package) -> Object, so the handles can be invoked exactly from here
+    private static MethodHandle erase(MethodHandle handle) {
+        MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (isAppClass(type.parameterType(i))) {
+                type = type.changeParameterType(i, Object.class);
+            }
+        }
+        if (isAppClass(type.returnType())) {
+            type = type.changeReturnType(Object.class);
+        }
+        return handle.asType(type);
+    }
+
+    private static boolean isAppClass(Class<?> type) {
+        return !type.isPrimitive() && !type.isArray() && type.getName().indexOf('.') < 0;
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new IllegalStateException(t);
+    }
+}
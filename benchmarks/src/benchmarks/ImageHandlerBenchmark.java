@@ -0,0 +1,54 @@
+package benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Image validation (done on each image load) and export
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms3g", "-Xmx3g" })
+public class ImageHandlerBenchmark {
+
+    @Param({ "256x224", "1024x1024", "4096x4096", "8192x8192" })
+    public String size;
+
+    private BufferedImage image;
+    private Object imageHandler;
+
+    @Setup
+    public void setup() throws IOException {
+        image = Inputs.indexedPng(size);
+        imageHandler = App.newImageHandler();
+        if (App.setImage(imageHandler, image) != 0) {
+            throw new IllegalStateException("Invalid benchmark image " + size);
+        }
+        App.setMask(imageHandler, Inputs.mask(size));
+    }
+
+
+    @Benchmark
+    public int isValidIndexedImage() {
+        return App.isValidIndexedImage(imageHandler, image);
+    }
+
+    @Benchmark
+    public BufferedImage applyMask() {
+        App.applyMask(imageHandler);
+        return App.getExportedImage(imageHandler);
+    }
+}
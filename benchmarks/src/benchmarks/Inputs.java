@@ -0,0 +1,70 @@
+package benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+// Synthetic inputs : 16 colors indexed PNG images and masks, from 256x224 (one screen) to 8192x8192.
+final class Inputs {
+
+    static final int TILE_SIZE = 8;
+
+    private Inputs() {
+    }
+
+
+    static int width(String size) {
+        return Integer.parseInt(size.substring(0, size.indexOf('x')));
+    }
+
+    static int height(String size) {
+        return Integer.parseInt(size.substring(size.indexOf('x') + 1));
+    }
+
+    // Indexed PNG written to a temporary file and read back with ImageIO, like the editor loads it.
+    // Tiles are filled with a few colors, so the image compresses like a real background.
+    static BufferedImage indexedPng(String size) throws IOException {
+        int width = width(size);
+        int height = height(size);
+
+        byte[] colors = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            colors[i] = (byte) (i * 17);
+        }
+        IndexColorModel colorModel = new IndexColorModel(8, 16, colors, colors, colors);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, colorModel);
+
+        Random random = new Random(width * 31 + height);
+        byte[] row = new byte[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int tileColor = ((x / TILE_SIZE) * 7 + (y / TILE_SIZE) * 3) & 0x0F;
+                row[x] = (byte) (random.nextInt(4) == 0 ? random.nextInt(16) : tileColor);
+            }
+            image.getRaster().setDataElements(0, y, width, 1, row);
+        }
+
+        File file = File.createTempFile("bench-" + size + "-", ".png");
+        file.deleteOnExit();
+        ImageIO.write(image, "png", file);
+        return ImageIO.read(file);
+    }
+
+    // Mask covering an image of the given size, with every palette and priority used
+    static Object mask(String size) {
+        int width = width(size) / TILE_SIZE;
+        int height = height(size) / TILE_SIZE;
+        Object mask = App.newMask(width, height);
+
+        Random random = new Random(width * 31 + height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                App.setTileProperties(mask, x, y, random.nextInt(4), random.nextInt(2));
+            }
+        }
+        return mask;
+    }
+}
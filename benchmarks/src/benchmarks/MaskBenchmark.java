@@ -0,0 +1,62 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Mask allocation, full copy (the undo snapshot of a whole mask) and tile reads (done for every
+// painted tile), on the mask of an image of the given size
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class MaskBenchmark {
+
+    @Param({ "256x224", "1024x1024", "4096x4096", "8192x8192" })
+    public String size;
+
+    private Object mask;
+    private int width;
+    private int height;
+
+    @Setup
+    public void setup() {
+        mask = Inputs.mask(size);
+        width = Inputs.width(size) / Inputs.TILE_SIZE;
+        height = Inputs.height(size) / Inputs.TILE_SIZE;
+    }
+
+
+    @Benchmark
+    public Object create() {
+        return App.newMask(width, height);
+    }
+
+    @Benchmark
+    public Object copy() {
+        return App.copyMask(mask);
+    }
+
+    // getTilePalette + getTilePriority on every tile
+    @Benchmark
+    public int readTiles() {
+        int sum = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                sum += App.getTilePalette(mask, x, y) + App.getTilePriority(mask, x, y);
+            }
+        }
+        return sum;
+    }
+}
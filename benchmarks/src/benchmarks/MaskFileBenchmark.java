@@ -0,0 +1,64 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Mask files : AppFileHandler.loadMask and the write done by AppFileHandler.saveMask
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class MaskFileBenchmark {
+
+    @Param({ "256x224", "1024x1024", "4096x4096", "8192x8192" })
+    public String size;
+
+    private Object mask;
+    private File loadFile;
+    private File saveFile;
+
+    @Setup
+    public void setup() throws IOException {
+        mask = Inputs.mask(size);
+        loadFile = File.createTempFile("bench-load-" + size + "-", ".msk");
+        saveFile = File.createTempFile("bench-save-" + size + "-", ".msk");
+        App.saveMask(mask, loadFile);
+    }
+
+    @TearDown
+    public void tearDown() {
+        loadFile.delete();
+        saveFile.delete();
+    }
+
+
+    @Benchmark
+    public Object loadMask() {
+        Object loaded = App.loadMask(loadFile.getPath());
+        if (loaded == null) {
+            throw new IllegalStateException("Unable to load " + loadFile);
+        }
+        return loaded;
+    }
+
+    @Benchmark
+    public File saveMask() {
+        App.saveMask(mask, saveFile);
+        return saveFile;
+    }
+}
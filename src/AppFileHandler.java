@@ -2,8 +2,12 @@ import java.awt.Color;
 import java.awt.Component;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.util.Iterator;
 import java.util.Properties;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
 import javax.swing.JFileChooser;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
@@ -40,8 +44,8 @@ public class AppFileHandler {
             lastMaskDirectory = selectedFile.getParentFile(); 
             saveConfig();
 
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(selectedFile.getAbsolutePath()))) {
-                oos.writeObject(mask);
+            try {
+                MaskFile.write(mask, selectedFile);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -52,6 +56,11 @@ public class AppFileHandler {
 
 
     public static Mask loadMask(Component panel) {
+        return loadMask(panel, false);
+    }
+
+    // mapped : RAW mask files are memory-mapped, and the edits are written straight to the file
+    public static Mask loadMask(Component panel, boolean mapped) {
 
         JFileChooser fileChooser = new JFileChooser(lastMaskDirectory);
         fileChooser.setDialogTitle("Load Mask");
@@ -62,9 +71,9 @@ public class AppFileHandler {
             lastMaskDirectory = selectedFile.getParentFile();
             saveConfig();
 
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(selectedFile))) {
-                return (Mask) ois.readObject();
-            } catch (IOException | ClassNotFoundException e) {
+            try {
+                return mapped ? MaskFile.readMapped(selectedFile, true) : MaskFile.read(selectedFile);
+            } catch (IOException e) {
                 e.printStackTrace();
                 return null;
             }
@@ -74,9 +83,14 @@ public class AppFileHandler {
     }
 
     public static Mask loadMask(String selectedFile) {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(selectedFile))) {
-            return (Mask) ois.readObject();
-        } catch (IOException | ClassNotFoundException e) {
+        return loadMask(selectedFile, false);
+    }
+
+    // mapped : the mask is memory-mapped read only (no heap used by RAW mask files)
+    public static Mask loadMask(String selectedFile, boolean mapped) {
+        try {
+            return mapped ? MaskFile.readMapped(new File(selectedFile), false) : MaskFile.read(new File(selectedFile));
+        } catch (IOException e) {
             e.printStackTrace();
             return null;
         }
@@ -122,7 +136,8 @@ public class AppFileHandler {
             }
         }
 
-    public static BufferedImage selectInputImage(Component panel)
+    // Ask for the image to load, without reading it (see ImageLoader)
+    public static File selectInputImageFile(Component panel)
     {
         JFileChooser fileChooser = new JFileChooser(lastImageDirectory);
         fileChooser.setDialogTitle("Load Image PNG");
@@ -130,20 +145,40 @@ public class AppFileHandler {
 
         if (fileChooser.showOpenDialog(panel) == JFileChooser.APPROVE_OPTION) 
         {
-            try
-            {            
-                File file = fileChooser.getSelectedFile();
-                lastImageDirectory = file.getParentFile();
-                saveConfig();        
-                return ImageIO.read(file);
-            }  catch (IOException e) {
-                e.printStackTrace();
-            }
+            File file = fileChooser.getSelectedFile();
+            lastImageDirectory = file.getParentFile();
+            saveConfig();        
+            return file;
         }
 
         return null;
     }
 
+    // Same as ImageIO.read(file), reporting the decoding progress to listener.
+    // The listener may abort the reader : the image returned is then incomplete.
+    public static BufferedImage readImage(File file, IIOReadProgressListener listener) throws IOException
+    {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file))
+        {
+            if (input == null) {
+                throw new IOException("Can't read " + file);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null; // unknown format, as ImageIO.read
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                reader.addIIOReadProgressListener(listener);
+                return reader.read(0, reader.getDefaultReadParam());
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
 
     public static File selectOutputImage(Component panel) 
     {
@@ -170,10 +205,20 @@ public class AppFileHandler {
 
     
     public static int writeOutputImage(BufferedImage outputImage, File outputFile)
+    {
+        return writeOutputImage(outputImage, outputFile, new IndexedPngEncoder());
+    }
+
+    // 8bpp indexed images are written by encoder, the others by ImageIO
+    public static int writeOutputImage(BufferedImage outputImage, File outputFile, IndexedPngEncoder encoder)
     {
         try
         {
-            ImageIO.write(outputImage, "png", outputFile);
+            if (IndexedPngEncoder.canEncode(outputImage)) {
+                encoder.write(outputImage, outputFile);
+            } else {
+                ImageIO.write(outputImage, "png", outputFile);
+            }
         }
         catch (IOException e) {
             return ERR_WRITE_EXPORT_IMAGE;
@@ -0,0 +1,287 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import javax.imageio.ImageIO;
+
+// One batch export : image + mask -> output image.
+// Errors are reported through the return code and getMessage(), never thrown,
+// so a bad file only fails its own job.
+public class BatchJob {
+
+    public static final int SUCCESS = 0;
+    public static final int ERR_IMAGE_NOT_FOUND = 1;
+    public static final int ERR_MASK_NOT_FOUND = 2;
+    public static final int ERR_INVALID_IMAGE = 3;
+    public static final int ERR_INVALID_MASK = 4;
+    public static final int ERR_WRITE_OUTPUT = 5;
+    public static final int ERR_UNEXPECTED = 6;
+    public static final int ERR_NOT_RUN = 7;
+
+    private final File imageFile;
+    private final File maskFile;
+    private final File outputFile;
+
+    private int returnCode = ERR_NOT_RUN; // until run() returns
+    private String message = "Not run";
+    private long durationMillis = 0;
+    private boolean cacheHit = false;
+
+
+
+    public BatchJob(File imageFile, File maskFile, File outputFile) {
+        this.imageFile = imageFile;
+        this.maskFile = maskFile;
+        this.outputFile = outputFile;
+    }
+
+
+    public int run(BatchOptions options) {
+        long start = System.nanoTime();
+        try {
+            String cacheKey = options.cache != null ? lookupCache(options.cache, "level " + options.compressionLevel) : null;
+
+            if (cacheHit) {
+                returnCode = SUCCESS;
+                message = outputFile + " is up to date";
+            } else {
+                returnCode = process(options);
+                if (returnCode == SUCCESS && cacheKey != null) {
+                    storeCache(options.cache, cacheKey);
+                }
+            }
+        } catch (IOException e) {
+            returnCode = fail(ERR_INVALID_IMAGE, "Error while reading " + imageFile + ": " + e.getMessage());
+        } catch (Throwable e) {
+            // any other failure (OutOfMemoryError, StackOverflowError...) only fails this job
+            returnCode = fail(ERR_UNEXPECTED, "Unexpected error: " + e);
+        }
+        durationMillis = (System.nanoTime() - start) / 1000000;
+        return returnCode;
+    }
+
+
+    // Returns the cache key of the job (null if it can't be computed), and sets cacheHit
+    private String lookupCache(ExportCache cache, String settings) {
+        if (!imageFile.isFile() || !maskFile.isFile()) {
+            return null;
+        }
+        try {
+            String key = cache.computeKey(imageFile, maskFile, outputFile, settings);
+            cacheHit = cache.isUpToDate(key, outputFile);
+            return key;
+        } catch (IOException e) {
+            System.err.println("Warning: export cache unavailable for " + imageFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void storeCache(ExportCache cache, String key) {
+        try {
+            cache.store(key, outputFile);
+        } catch (IOException e) {
+            System.err.println("Warning: unable to update the export cache: " + e.getMessage());
+        }
+    }
+
+
+    private int process(BatchOptions options) throws IOException {
+        // Check files path
+        if (!imageFile.isFile()) {
+            return fail(ERR_IMAGE_NOT_FOUND, "Image file not found: " + imageFile);
+        }
+        if (!maskFile.isFile()) {
+            return fail(ERR_MASK_NOT_FOUND, "Mask file not found: " + maskFile);
+        }
+
+        ImageHandler imageHandler = new ImageHandler();
+        imageHandler.setExportThreads(options.exportThreads);
+        imageHandler.setExportBandSize(options.exportBandSize);
+        imageHandler.setExportMode(ImageHandler.EXPORT_MODE_IN_PLACE); // the loaded image isn't needed after the export
+
+        IndexedPngEncoder encoder = new IndexedPngEncoder()
+            .setCompressionLevel(options.compressionLevel)
+            .setThreads(options.exportThreads);
+
+        // 8bpp indexed PNG : streamed from the decoder to the encoder
+        try (InputStream in = new FileInputStream(imageFile)) {
+            IndexedPngDecoder decoder = new IndexedPngDecoder(in);
+            try {
+                if (decoder.readHeader()) {
+                    return processStream(options, imageHandler, decoder, encoder);
+                }
+            } finally {
+                decoder.end();
+            }
+        }
+
+        // other images : loaded, then exported as a whole
+        BufferedImage image = ImageIO.read(imageFile);
+        if (image == null) {
+            return fail(ERR_INVALID_IMAGE, "Not a PNG image: " + imageFile);
+        }
+        int imageCode = imageHandler.setImage(image);
+        if (imageCode > 0) {
+            return fail(ERR_INVALID_IMAGE, imageHandler.getLastErrorMessage(imageCode).trim() + ": " + imageFile);
+        }
+
+        Mask mask;
+        try {
+            mask = options.mappedMask ? MaskFile.readMapped(maskFile, false) : MaskFile.read(maskFile);
+        } catch (IOException e) {
+            return fail(ERR_INVALID_MASK, "Invalid mask file: " + e.getMessage());
+        }
+
+        imageHandler.setMask(mask);
+        imageHandler.applyMask();
+
+        if (AppFileHandler.writeOutputImage(imageHandler.getExportedImage(), outputFile, encoder) != AppFileHandler.SUCCESS) {
+            return fail(ERR_WRITE_OUTPUT, "Error while writing the output PNG file: " + outputFile);
+        }
+
+        message = "output saved to " + outputFile;
+        return SUCCESS;
+    }
+
+    // Streaming export : only a few rows of the image are in memory at once.
+    // The output is written to a temporary file, renamed once complete, so a failed job
+    // doesn't leave a truncated PNG (nor remove the previous output).
+    private int processStream(BatchOptions options, ImageHandler imageHandler, IndexedPngDecoder decoder,
+                              IndexedPngEncoder encoder) throws IOException {
+        Mask mask;
+        try {
+            mask = options.mappedMask ? MaskFile.readMapped(maskFile, false) : MaskFile.read(maskFile);
+        } catch (IOException e) {
+            return fail(ERR_INVALID_MASK, "Invalid mask file: " + e.getMessage());
+        }
+        imageHandler.setMask(mask);
+
+        File partFile;
+        WriteCheckStream output;
+        try {
+            partFile = File.createTempFile(outputFile.getName(), ".part", outputFile.getAbsoluteFile().getParentFile());
+            output = new WriteCheckStream(new FileOutputStream(partFile));
+        } catch (IOException e) {
+            return fail(ERR_WRITE_OUTPUT, "Error while writing the output PNG file: " + outputFile);
+        }
+
+        boolean done = false;
+        try {
+            int imageCode;
+            try {
+                imageCode = imageHandler.exportStream(decoder, encoder, output);
+                output.close();
+            } catch (IOException e) {
+                if (output.failed) {
+                    return fail(ERR_WRITE_OUTPUT, "Error while writing the output PNG file: " + outputFile);
+                }
+                throw e; // reading error
+            }
+            if (imageCode != ImageHandler.SUCCESS) {
+                return fail(ERR_INVALID_IMAGE, imageHandler.getLastErrorMessage(imageCode).trim() + ": " + imageFile);
+            }
+
+            try {
+                Files.move(partFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                return fail(ERR_WRITE_OUTPUT, "Error while writing the output PNG file: " + outputFile);
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                output.closeQuietly();
+                partFile.delete();
+            }
+        }
+
+        message = "output saved to " + outputFile;
+        return SUCCESS;
+    }
+
+    // Output stream remembering if a write failed, to tell writing errors from reading ones
+    private static class WriteCheckStream extends FilterOutputStream {
+        boolean failed = false;
+
+        WriteCheckStream(OutputStream out) {
+            super(new BufferedOutputStream(out, 1 << 16));
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        void closeQuietly() {
+            try {
+                out.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private int fail(int code, String failure) {
+        message = failure;
+        return code;
+    }
+
+
+    public File getImageFile() {
+        return imageFile;
+    }
+
+    public File getMaskFile() {
+        return maskFile;
+    }
+
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    public int getReturnCode() {
+        return returnCode;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    // True if the export was skipped, its output being up to date
+    public boolean isCacheHit() {
+        return cacheHit;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+}
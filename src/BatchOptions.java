@@ -0,0 +1,68 @@
+import java.io.File;
+
+// Options of the batch modes (--b and --bm), given after the paths on the command line
+public class BatchOptions {
+
+    public int exportThreads = 0; // 0 = one per core
+    public int exportBandSize = ImageHandler.DEFAULT_EXPORT_BAND_SIZE;
+    public boolean mappedMask = false;
+    public ExportCache cache = null; // null = always export
+    public int compressionLevel = IndexedPngEncoder.DEFAULT_COMPRESSION_LEVEL;
+
+    // manifest mode only
+    public int workers = 0; // 0 = one per core
+    public String outputDirectory = null;
+
+
+
+    // Parse the options from args[first] : throws IllegalArgumentException on an unknown or invalid option
+    public static BatchOptions parse(String[] args, int first, boolean manifestMode) {
+        BatchOptions options = new BatchOptions();
+
+        // jobs already run in parallel : one export thread per job unless asked otherwise
+        if (manifestMode) {
+            options.exportThreads = 1;
+        }
+
+        for (int i = first; i < args.length; i++)
+        {
+            String option = args[i];
+            boolean hasValue = i + 1 < args.length;
+
+            if (option.equals("--threads") && hasValue) {
+                options.exportThreads = parseNumber(option, args[++i], 0);
+            } else if (option.equals("--band") && hasValue) {
+                options.exportBandSize = parseNumber(option, args[++i], 1);
+            } else if (option.equals("--mapped")) {
+                options.mappedMask = true;
+            } else if (option.equals("--level") && hasValue) {
+                options.compressionLevel = parseNumber(option, args[++i], 0);
+                if (options.compressionLevel < 0 || options.compressionLevel > 9) {
+                    throw new IllegalArgumentException("Invalid compression level: " + options.compressionLevel + " (0-9)");
+                }
+            } else if (option.equals("--cache") && hasValue) {
+                options.cache = new ExportCache(new File(args[++i]));
+            } else if (manifestMode && option.equals("--workers") && hasValue) {
+                options.workers = parseNumber(option, args[++i], 0);
+            } else if (manifestMode && option.equals("--out") && hasValue) {
+                options.outputDirectory = args[++i];
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + option);
+            }
+        }
+        return options;
+    }
+
+    private static int parseNumber(String option, String value, int min) {
+        int number;
+        try {
+            number = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number for " + option + ": " + value);
+        }
+        if (number < min) {
+            throw new IllegalArgumentException("Invalid number for " + option + ": " + value + " (" + min + " minimum)");
+        }
+        return number;
+    }
+}
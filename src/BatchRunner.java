@@ -0,0 +1,189 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+
+// Multi-job batch mode : runs many exports inside one JVM, on a bounded pool of workers.
+//
+// The jobs come from either :
+//  - a manifest file, one job per line : <image_path> <mask_path> <export_path>
+//    (paths relative to the manifest folder, "quoted" if they contain spaces, # starts a comment)
+//  - a directory : every <name>.png having a <name>.msk next to it is exported to <name>_palprio.png
+public class BatchRunner {
+
+    public static final String OUTPUT_SUFFIX = "_palprio.png";
+
+    private final BatchOptions options;
+
+
+
+    public BatchRunner(BatchOptions options) {
+        this.options = options;
+    }
+
+
+    public static List<BatchJob> loadJobs(File source, String outputDirectory) throws IOException {
+        if (source.isDirectory()) {
+            return scanDirectory(source, outputDirectory);
+        }
+        return readManifest(source, outputDirectory);
+    }
+
+
+    private static List<BatchJob> readManifest(File manifest, String outputDirectory) throws IOException {
+        List<BatchJob> jobs = new ArrayList<>();
+        File baseDirectory = manifest.getAbsoluteFile().getParentFile();
+
+        try (BufferedReader reader = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                List<String> fields = splitLine(line);
+                if (fields.isEmpty()) {
+                    continue;
+                }
+                if (fields.size() != 3) {
+                    throw new IOException(manifest + " line " + lineNumber + ": expected <image_path> <mask_path> <export_path>");
+                }
+
+                File output = resolve(baseDirectory, fields.get(2));
+                if (outputDirectory != null) {
+                    output = new File(outputDirectory, output.getName());
+                }
+                jobs.add(new BatchJob(resolve(baseDirectory, fields.get(0)), resolve(baseDirectory, fields.get(1)), output));
+            }
+        }
+        return jobs;
+    }
+
+
+    private static List<BatchJob> scanDirectory(File directory, String outputDirectory) {
+        List<BatchJob> jobs = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return jobs;
+        }
+        Arrays.sort(files);
+
+        for (File image : files) {
+            String name = image.getName();
+            if (!image.isFile() || !name.toLowerCase().endsWith(".png") || name.toLowerCase().endsWith(OUTPUT_SUFFIX)) {
+                continue;
+            }
+
+            String baseName = name.substring(0, name.length() - 4);
+            File mask = new File(directory, baseName + ".msk");
+            if (!mask.isFile()) {
+                continue;
+            }
+
+            File output = new File(outputDirectory != null ? new File(outputDirectory) : directory, baseName + OUTPUT_SUFFIX);
+            jobs.add(new BatchJob(image, mask, output));
+        }
+        return jobs;
+    }
+
+
+    // Split a manifest line on blanks, "quoted" fields may contain spaces
+    private static List<String> splitLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = null;
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+
+            if (!quoted && c == '#') {
+                break;
+            }
+            if (c == '"') {
+                quoted = !quoted;
+                if (field == null) {
+                    field = new StringBuilder();
+                }
+            } else if (!quoted && Character.isWhitespace(c)) {
+                if (field != null) {
+                    fields.add(field.toString());
+                    field = null;
+                }
+            } else {
+                if (field == null) {
+                    field = new StringBuilder();
+                }
+                field.append(c);
+            }
+        }
+        if (field != null) {
+            fields.add(field.toString());
+        }
+        return fields;
+    }
+
+    private static File resolve(File baseDirectory, String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(baseDirectory, path);
+    }
+
+
+    // Run all the jobs, returns the number of failed jobs
+    public int run(List<BatchJob> jobs) {
+        int workers = options.workers > 0 ? options.workers : Runtime.getRuntime().availableProcessors();
+        workers = Math.max(1, Math.min(workers, jobs.size()));
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        List<Future<?>> results = new ArrayList<>();
+
+        for (BatchJob job : jobs) {
+            results.add(pool.submit(() -> {
+                job.run(options);
+                report(job);
+            }));
+        }
+
+        int failed = 0;
+        int cacheHits = 0;
+        for (int i = 0; i < results.size(); i++) {
+            boolean finished = false;
+            try {
+                results.get(i).get();
+                finished = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                System.err.println("Error in batch mode: " + e.getCause());
+            }
+            // a job which didn't finish has failed, whatever its return code
+            if (!finished || jobs.get(i).getReturnCode() != BatchJob.SUCCESS) {
+                failed++;
+            } else if (jobs.get(i).isCacheHit()) {
+                cacheHits++;
+            }
+        }
+        pool.shutdown();
+
+        long totalMillis = (System.nanoTime() - start) / 1000000;
+        System.out.println(String.format("%d job(s) in %d ms on %d worker(s) : %d succeeded (%d cache hit(s)), %d failed",
+                           jobs.size(), totalMillis, workers, jobs.size() - failed, cacheHits, failed));
+        return failed;
+    }
+
+    private static void report(BatchJob job) {
+        if (job.isCacheHit()) {
+            System.out.println(String.format("[CACHED] %s (%d ms) : %s", job.getImageFile(), job.getDurationMillis(), job.getMessage()));
+        } else if (job.getReturnCode() == BatchJob.SUCCESS) {
+            System.out.println(String.format("[OK]     %s (%d ms) : %s", job.getImageFile(), job.getDurationMillis(), job.getMessage()));
+        } else {
+            System.err.println(String.format("[FAILED] %s (%d ms) : %s", job.getImageFile(), job.getDurationMillis(), job.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+// On-disk cache of the batch exports, to skip the jobs whose inputs didn't change.
+//
+// A job is keyed by a SHA-256 of the tool version, the output path, the settings changing the
+// output file and the bytes of the input image and mask. After a successful export an entry file
+// named after the key records the size and date of the output image : while the output file is
+// still the same, the job is up to date.
+public class ExportCache {
+
+    private static final int CACHE_FORMAT = 1;
+
+    private final File directory;
+
+
+
+    public ExportCache(File directory) {
+        this.directory = directory;
+    }
+
+
+    public String computeKey(File imageFile, File maskFile, File outputFile, String settings) throws IOException {
+        return computeKey(imageFile, maskFile, outputFile, settings, PngPalettePriorityEditor.VERSION);
+    }
+
+    // A new version of the tool may export differently : its entries are never reused
+    String computeKey(File imageFile, File maskFile, File outputFile, String settings, String version) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        digest.update(("pppe4sgdk " + version + " cache " + CACHE_FORMAT + "\n").getBytes(StandardCharsets.UTF_8));
+        digest.update((outputFile.getCanonicalPath() + "\n").getBytes(StandardCharsets.UTF_8));
+        digest.update((settings + "\n").getBytes(StandardCharsets.UTF_8));
+
+        byte[] buffer = new byte[65536];
+        for (File file : new File[] { imageFile, maskFile }) {
+            try (InputStream in = new FileInputStream(file)) {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+            digest.update((byte) 0);
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+
+    // True if the output was produced from the same inputs and hasn't been modified since
+    public boolean isUpToDate(String key, File outputFile) {
+        File entry = new File(directory, key);
+        if (!entry.isFile() || !outputFile.isFile()) {
+            return false;
+        }
+
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(entry)) {
+            properties.load(in);
+        } catch (IOException e) {
+            return false;
+        }
+
+        return String.valueOf(outputFile.length()).equals(properties.getProperty("length"))
+            && String.valueOf(outputFile.lastModified()).equals(properties.getProperty("lastModified"));
+    }
+
+
+    // Record a successful export
+    public void store(String key, File outputFile) throws IOException {
+        directory.mkdirs();
+
+        Properties properties = new Properties();
+        properties.setProperty("output", outputFile.getCanonicalPath());
+        properties.setProperty("length", String.valueOf(outputFile.length()));
+        properties.setProperty("lastModified", String.valueOf(outputFile.lastModified()));
+
+        // write then rename, so a concurrent reader never sees a partial entry
+        File temp = File.createTempFile(key, ".tmp", directory);
+        try (OutputStream out = new FileOutputStream(temp)) {
+            properties.store(out, "PPPE4SGDK export cache");
+        }
+        Files.move(temp.toPath(), new File(directory, key).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
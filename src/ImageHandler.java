@@ -1,8 +1,13 @@
+import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.awt.image.IndexColorModel;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
 
 
 
@@ -13,13 +18,28 @@ public class ImageHandler {
     public static final int ERR_IMAGE_NOT_8BPP = 2;
     public static final int ERR_IMAGE_MORE_THAN_16_COLORS = 3;
     public static final int ERR_NO_IMAGE_NOR_MASK_LOADED_YET = 4;
+    public static final int ERR_MASK_STORAGE = 5;
+    public static final int ERR_IMAGE_READ = 6;
 
 
     public static final int TILE_SIZE = 8;
 
+    public static final int EXPORT_MODE_FAST = 0;
+    public static final int EXPORT_MODE_REFERENCE = 1;
+    public static final int EXPORT_MODE_IN_PLACE = 2; // fast export overwriting the loaded image (batch)
+
+    public static final int DEFAULT_EXPORT_BAND_SIZE = 16; // tile rows per parallel export band
+
     private BufferedImage image;
     private BufferedImage exportedImage;
     private Mask mask;
+    private int exportMode = EXPORT_MODE_FAST;
+    private int exportThreads = 0; // 0 = one thread per core
+    private int exportBandSize = DEFAULT_EXPORT_BAND_SIZE;
+
+    // details of the last image validation
+    private Point invalidPixel;
+    private int invalidPixelColor;
 
 
 
@@ -52,6 +72,14 @@ public class ImageHandler {
             case ImageHandler.ERR_NO_IMAGE_NOR_MASK_LOADED_YET:
                 msg="No image or mask loaded.";
                 break;
+
+            case ImageHandler.ERR_MASK_STORAGE:
+                msg="Unable to create the memory-mapped mask file ";
+                break;
+
+            case ImageHandler.ERR_IMAGE_READ:
+                msg="Unable to read the image file ";
+                break;
         } 
         return msg; 
     }
@@ -59,6 +87,12 @@ public class ImageHandler {
 
 
     public int setImage(BufferedImage loadedImage) 
+    {        
+        return setImage(loadedImage, false);
+    }
+
+    // mappedMask : the new mask is stored in a memory-mapped temporary file instead of the heap (huge images)
+    public int setImage(BufferedImage loadedImage, boolean mappedMask) 
     {        
         int returnCode = isValidIndexedImage(loadedImage);
 
@@ -66,16 +100,48 @@ public class ImageHandler {
             return returnCode;
         }
 
-        image =loadedImage;
-        int width = image.getWidth() / TILE_SIZE ;
-        int height = image.getHeight() / TILE_SIZE ;
-        mask = new Mask(width, height);
+        return allocateMask(loadedImage, mappedMask);
+    }
+
+    // Image decoded by IndexedPngDecoder : it's 8bpp indexed and its pixels were checked while decoding
+    public int setImage(IndexedPngDecoder decoder, BufferedImage decodedImage, boolean mappedMask) 
+    {
+        invalidPixel = decoder.getInvalidPixel();
+        if (invalidPixel != null) {
+            invalidPixelColor = decoder.getInvalidPixelColor();
+            return ERR_IMAGE_MORE_THAN_16_COLORS;
+        }
+
+        return allocateMask(decodedImage, mappedMask);
+    }
+
+    private int allocateMask(BufferedImage loadedImage, boolean mappedMask)
+    {
+        int width = loadedImage.getWidth() / TILE_SIZE ;
+        int height = loadedImage.getHeight() / TILE_SIZE ;
+        Mask newMask;
+
+        if (mappedMask) {
+            try {
+                newMask = MaskFile.createTempMapped(width, height);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return ERR_MASK_STORAGE;
+            }
+        } else {
+            newMask = new Mask(width, height);
+        }
+
+        image = loadedImage;
+        mask = newMask;
         
         return 0;
     }
 
     
     private int isValidIndexedImage(BufferedImage img) {
+        invalidPixel = null;
+
         // Vérifier que l'image a un IndexColorModel (palette)
         ColorModel cm = img.getColorModel();
         if (!(cm instanceof IndexColorModel)) {
@@ -90,60 +156,209 @@ public class ImageHandler {
         }
     
         // check pixels index between 0 and 15
-        Raster raster = img.getRaster();
+        invalidPixel = findFirstInvalidPixel(img);
+        if (invalidPixel != null) {
+            invalidPixelColor = img.getRaster().getSample(invalidPixel.x, invalidPixel.y, 0);
+            return ERR_IMAGE_MORE_THAN_16_COLORS;
+        }
+        return SUCCESS;
+    }
+
+
+    // Position of the first pixel using a color index above 15, null if there is none
+    private static Point findFirstInvalidPixel(BufferedImage img) {
         int width = img.getWidth();
         int height = img.getHeight();
-    
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int pixelIndex = raster.getSample(x, y, 0);
-                if (pixelIndex < 0 || pixelIndex > 15) {
-                    return ERR_IMAGE_MORE_THAN_16_COLORS;
+        IndexedRaster pixels = IndexedRaster.of(img);
+
+        if (pixels == null) {
+            // pixels not stored as bytes : check them row by row
+            Raster raster = img.getRaster();
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                raster.getSamples(0, y, width, 1, 0, row);
+                for (int x = 0; x < width; x++) {
+                    if (row[x] < 0 || row[x] > 15) {
+                        return new Point(x, y);
+                    }
                 }
             }
+            return null;
         }
-        return SUCCESS;
+
+        byte[] data = pixels.getData();
+        ByteBuffer longView = ByteBuffer.wrap(data);
+        int stride = pixels.getStride();
+
+        if (stride == width) {
+            // rows are contiguous : scan the whole image at once
+            int index = findHighNibble(data, longView, pixels.getOffset(), pixels.getOffset() + width * height);
+            if (index >= 0) {
+                return new Point((index - pixels.getOffset()) % width, (index - pixels.getOffset()) / width);
+            }
+            return null;
+        }
+
+        for (int y = 0; y < height; y++) {
+            int rowOffset = pixels.getRowOffset(y);
+            int index = findHighNibble(data, longView, rowOffset, rowOffset + width);
+            if (index >= 0) {
+                return new Point(index - rowOffset, y);
+            }
+        }
+        return null;
     }
-            
+
+
+    // Index of the first byte of data[from, to[ with one of its 4 high bits set, -1 if none.
+    // Bytes are checked 8 at a time, then one by one to locate the faulty one.
+    private static int findHighNibble(byte[] data, ByteBuffer longView, int from, int to) {
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            if ((longView.getLong(i) & 0xF0F0F0F0F0F0F0F0L) != 0) {
+                break;
+            }
+        }
+        for (; i < to; i++) {
+            if ((data[i] & 0xF0) != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    // Error message of the last setImage() call, with the position of the faulty pixel if known
+    public String getLastErrorMessage(int returnCode) {
+        String msg = getErrorMessage(returnCode);
+
+        if (returnCode == ERR_IMAGE_MORE_THAN_16_COLORS && invalidPixel != null) {
+            msg += String.format("(pixel at %d, %d uses color %d)", invalidPixel.x, invalidPixel.y, invalidPixelColor);
+        }
+        return msg;
+    }
+
     public int applyMask()
     {
         if (image == null || mask == null) {
             return ERR_NO_IMAGE_NOR_MASK_LOADED_YET;
         }
 
-        int width = image.getWidth();
-        int height = image.getHeight();
-
-        // Get original palette
-        IndexColorModel originalColorModel = (IndexColorModel) image.getColorModel();
-        
-        int paletteSize = originalColorModel.getMapSize();
-        byte[] reds = new byte[paletteSize];
-        byte[] greens = new byte[paletteSize];
-        byte[] blues = new byte[paletteSize];
+        if (exportMode == EXPORT_MODE_REFERENCE) {
+            return applyMaskReference();
+        }
 
-        originalColorModel.getReds(reds);
-        originalColorModel.getGreens(greens);
-        originalColorModel.getBlues(blues);
+        IndexColorModel newColorModel = createExportColorModel((IndexColorModel) image.getColorModel());
+        BufferedImage outputImage;
+        MaskExporter exporter;
+
+        if (exportMode == EXPORT_MODE_IN_PLACE && newColorModel.isCompatibleRaster(image.getRaster())) {
+            // no new image : the pixels of the source are rewritten, and shown with the 256 colors palette
+            IndexedRaster pixels = IndexedRaster.of(image);
+            outputImage = new BufferedImage(newColorModel, image.getRaster(), false, null);
+            exporter = MaskExporter.create(pixels, pixels, mask);
+            if (exporter != null) {
+                exporter.clearUncovered(0, image.getHeight());
+            }
+        } else {
+            outputImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_INDEXED, newColorModel);
+            exporter = MaskExporter.create(IndexedRaster.of(image), IndexedRaster.of(outputImage), mask);
+        }
+        if (exporter == null) {
+            // pixels not stored as bytes : fall back to the generic path
+            return applyMaskReference();
+        }
 
-        // Create new  palette 256 colors
-        byte[] newReds = new byte[256];
-        byte[] newGreens = new byte[256];
-        byte[] newBlues = new byte[256];
+        int threads = exportThreads > 0 ? exportThreads : Runtime.getRuntime().availableProcessors();
 
-        // Duplication des 16 premières couleurs sur 16 palettes
-        for (int i = 0; i < 16; i++) {
-            for (int j = 0; j < 16; j++) {
-                int newIndex = (i * 16) + j; // Génère un index de 0 à 255
-                int originalIndex = j % paletteSize; // Récupère l'index original sans dépasser
-                newReds[newIndex] = reds[originalIndex];
-                newGreens[newIndex] = greens[originalIndex];
-                newBlues[newIndex] = blues[originalIndex];
+        if (threads > 1 && exporter.getTileRowCount() > exportBandSize) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                exporter.exportParallel(pool, exportBandSize);
+            } finally {
+                pool.shutdown();
             }
+        } else {
+            exporter.exportAll();
         }
 
-        // Création d'un nouvel IndexColorModel avec la palette corrigée
-        IndexColorModel newColorModel = new IndexColorModel(8, 256, newReds, newGreens, newBlues);
+        exportedImage = outputImage;
+        if (outputImage.getRaster() == image.getRaster()) {
+            image = outputImage; // the source pixels are gone (exporting again gives the same output)
+        }
+        return SUCCESS;
+    }
+
+
+    // Streaming export (batch mode) : the PNG read by decoder is masked and given to encoder
+    // a tile row (8 pixel rows) at a time, the whole image is never in memory.
+    // The decoder header must have been read and the mask set. If the image uses more than
+    // 16 colors, ERR_IMAGE_MORE_THAN_16_COLORS is returned and the output is incomplete.
+    public int exportStream(IndexedPngDecoder decoder, IndexedPngEncoder encoder, OutputStream output) throws IOException
+    {
+        if (mask == null) {
+            return ERR_NO_IMAGE_NOR_MASK_LOADED_YET;
+        }
+
+        int width = decoder.getWidth();
+        int height = decoder.getHeight();
+        byte[] band = new byte[TILE_SIZE * width];
+        invalidPixel = null;
+
+        try (IndexedPngEncoder.RowWriter rows = encoder.start(output, width, height, createExportColorModel(decoder.getColorModel()))) {
+            decoder.decodeRows((y, data, offset) -> {
+                // row y is checked by the decoder before being handled
+                if (decoder.getInvalidPixel() != null) {
+                    throw new InvalidPixelException();
+                }
+
+                int bandFirstRow = y - y % TILE_SIZE;
+                System.arraycopy(data, offset, band, (y - bandFirstRow) * width, width);
+                if (y % TILE_SIZE != TILE_SIZE - 1 && y != height - 1) {
+                    return;
+                }
+
+                // the mask is applied in place on the band, seen as rows of the full image
+                IndexedRaster raster = IndexedRaster.wrap(band, -bandFirstRow * width, width, width, height);
+                MaskExporter exporter = MaskExporter.create(raster, raster, mask);
+                int tileY = bandFirstRow / TILE_SIZE;
+                if (tileY < exporter.getTileRowCount()) {
+                    exporter.exportTileRows(tileY, tileY + 1);
+                }
+                exporter.clearUncovered(bandFirstRow, y + 1);
+
+                for (int row = bandFirstRow; row <= y; row++) {
+                    rows.writeRow(band, (row - bandFirstRow) * width);
+                }
+            });
+            rows.finish();
+        } catch (InvalidPixelException e) {
+            invalidPixel = decoder.getInvalidPixel();
+            invalidPixelColor = decoder.getInvalidPixelColor();
+            return ERR_IMAGE_MORE_THAN_16_COLORS;
+        }
+
+        return SUCCESS;
+    }
+
+    // Stops the streaming export on the first invalid pixel
+    private static class InvalidPixelException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+
+    // Reference implementation (per pixel Raster access), slow but simple :
+    // the fast export must always give the very same output
+    public int applyMaskReference()
+    {
+        if (image == null || mask == null) {
+            return ERR_NO_IMAGE_NOR_MASK_LOADED_YET;
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        IndexColorModel newColorModel = createExportColorModel((IndexColorModel) image.getColorModel());
 
         // Create new indexed image
         BufferedImage tempImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED);
@@ -152,9 +367,7 @@ public class ImageHandler {
         // Apply mask modifications
         for (int tileY = 0; tileY < mask.getHeight(); tileY++) {
             for (int tileX = 0; tileX < mask.getWidth(); tileX++) {
-                Tile tile = mask.getTile(tileX, tileY);
-                int paletteIndex = tile.getPalette();
-                int priorityBit = tile.getPriority() << 7;
+                int tileBits = mask.getPackedTile(tileX, tileY); // palette & priority bits
 
                 for (int y = 0; y < 8; y++) {
                     for (int x = 0; x < 8; x++) {
@@ -163,7 +376,7 @@ public class ImageHandler {
 
                         if (pixelX < width && pixelY < height) {
                             int originalPixel = image.getRaster().getSample(pixelX, pixelY, 0);
-                            int newPixel = (originalPixel & 0x0F) | (paletteIndex << 4) | priorityBit;
+                            int newPixel = (originalPixel & 0x0F) | tileBits;
                             raster.setSample(pixelX, pixelY, 0, newPixel);
                         }
                     }
@@ -179,6 +392,72 @@ public class ImageHandler {
         return SUCCESS;    
     }
 
+
+    // 256 colors palette : the first 16 colors of the original palette, duplicated on the 16 sub-palettes
+    static IndexColorModel createExportColorModel(IndexColorModel originalColorModel)
+    {
+        int paletteSize = originalColorModel.getMapSize();
+        byte[] reds = new byte[paletteSize];
+        byte[] greens = new byte[paletteSize];
+        byte[] blues = new byte[paletteSize];
+
+        originalColorModel.getReds(reds);
+        originalColorModel.getGreens(greens);
+        originalColorModel.getBlues(blues);
+
+        // Create new  palette 256 colors
+        byte[] newReds = new byte[256];
+        byte[] newGreens = new byte[256];
+        byte[] newBlues = new byte[256];
+
+        // Duplication des 16 premières couleurs sur 16 palettes
+        for (int i = 0; i < 16; i++) {
+            for (int j = 0; j < 16; j++) {
+                int newIndex = (i * 16) + j; // Génère un index de 0 à 255
+                int originalIndex = j % paletteSize; // Récupère l'index original sans dépasser
+                newReds[newIndex] = reds[originalIndex];
+                newGreens[newIndex] = greens[originalIndex];
+                newBlues[newIndex] = blues[originalIndex];
+            }
+        }
+
+        // Création d'un nouvel IndexColorModel avec la palette corrigée
+        return new IndexColorModel(8, 256, newReds, newGreens, newBlues);
+    }
+
+    // EXPORT_MODE_IN_PLACE allocates no image : the loaded image becomes the exported one
+    public void setExportMode(int exportMode) {
+        this.exportMode = exportMode;
+    }
+
+    public int getExportMode() {
+        return exportMode;
+    }
+
+    // Number of threads of the fast export (0 = one per core, 1 = single thread)
+    public void setExportThreads(int exportThreads) {
+        this.exportThreads = Math.max(0, exportThreads);
+    }
+
+    public int getExportThreads() {
+        return exportThreads;
+    }
+
+    // Height of the parallel export bands, in tile rows
+    public void setExportBandSize(int exportBandSize) {
+        this.exportBandSize = Math.max(1, exportBandSize);
+    }
+
+    public int getExportBandSize() {
+        return exportBandSize;
+    }
+
+    // Take the image and mask already validated by another handler's setImage (see ImageLoader)
+    public void setImage(ImageHandler loaded) {
+        image = loaded.image;
+        mask = loaded.mask;
+    }
+
     public void setMask(Mask mask) {
         this.mask = mask;
     }
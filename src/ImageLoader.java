@@ -0,0 +1,166 @@
+import java.awt.Component;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+
+// Loads an image in the background : decoding, validation and mask allocation run off the EDT,
+// with a progress dialog which can cancel the loading.
+// When done, onLoaded is called on the EDT unless the loading was cancelled, also when the file couldn't be read.
+public class ImageLoader extends SwingWorker<Integer, Void> {
+
+    private static final int DECODING_PROGRESS = 90; // part of the progress bar used by the decoding
+
+    private final File file;
+    private final boolean mappedMask;
+    private final Consumer<ImageLoader> onLoaded;
+    private final ProgressMonitor progressMonitor;
+    private final Timer cancelPolling; // the monitor has no cancel event : check it regularly
+
+    private final ImageHandler loaded = new ImageHandler(); // result, handed to the panel when ready
+    private Throwable failure = null; // error while reading the file (ERR_IMAGE_READ)
+
+
+
+    public ImageLoader(Component parent, File file, boolean mappedMask, Consumer<ImageLoader> onLoaded) {
+        this.file = file;
+        this.mappedMask = mappedMask;
+        this.onLoaded = onLoaded;
+
+        progressMonitor = new ProgressMonitor(parent, "Loading " + file.getName(), "Decoding...", 0, 100);
+        progressMonitor.setMillisToDecideToPopup(200);
+        progressMonitor.setMillisToPopup(500);
+
+        addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) {
+                progressMonitor.setProgress((Integer) e.getNewValue());
+            }
+        });
+
+        cancelPolling = new Timer(100, e -> {
+            if (progressMonitor.isCanceled()) {
+                cancel(false);
+            }
+        });
+        cancelPolling.start();
+    }
+
+
+    @Override
+    protected Integer doInBackground() throws IOException {
+        // 8bpp indexed PNG : dedicated decoder, pixels checked while decoded
+        try (InputStream in = new FileInputStream(file)) {
+            IndexedPngDecoder decoder = new IndexedPngDecoder(in);
+            try {
+                if (decoder.readHeader()) {
+                    int height = decoder.getHeight();
+                    BufferedImage image = decoder.decodeImage((y, data, offset) -> {
+                        if (isCancelled()) {
+                            throw new InterruptedIOException("Loading cancelled");
+                        }
+                        setProgress((y + 1) * DECODING_PROGRESS / height);
+                    });
+                    setProgress(DECODING_PROGRESS);
+                    return loaded.setImage(decoder, image, mappedMask);
+                }
+            } finally {
+                decoder.end();
+            }
+        }
+
+        // other images : ImageIO, then validation
+        BufferedImage image = AppFileHandler.readImage(file, new ProgressListener());
+        if (isCancelled()) {
+            return null;
+        }
+        if (image == null) {
+            throw new IOException("Unknown image format: " + file.getName());
+        }
+
+        setProgress(DECODING_PROGRESS);
+        return loaded.setImage(image, mappedMask);
+    }
+
+    @Override
+    protected void done() {
+        cancelPolling.stop();
+        progressMonitor.close();
+        if (isCancelled()) {
+            return;
+        }
+
+        try {
+            get();
+        } catch (ExecutionException e) {
+            failure = e.getCause();
+            failure.printStackTrace(); // the dialog only shows the message
+        } catch (InterruptedException e) {
+            failure = e;
+        }
+        onLoaded.accept(this);
+    }
+
+
+    // Return code of ImageHandler.setImage, or ERR_IMAGE_READ (valid in onLoaded)
+    public int getReturnCode() {
+        if (failure != null) {
+            return ImageHandler.ERR_IMAGE_READ;
+        }
+        try {
+            return get();
+        } catch (Exception e) {
+            return ImageHandler.ERR_NO_IMAGE_NOR_MASK_LOADED_YET;
+        }
+    }
+
+    // Message to show when the return code isn't SUCCESS
+    public String getErrorMessage() {
+        int returnCode = getReturnCode();
+        if (returnCode == ImageHandler.ERR_IMAGE_READ) {
+            String detail = failure.getMessage() != null ? failure.getMessage() : failure.toString();
+            return ImageHandler.getErrorMessage(returnCode) + "(" + detail + ")";
+        }
+        return loaded.getLastErrorMessage(returnCode);
+    }
+
+    // Handler holding the validated image and its new mask, or the error message
+    public ImageHandler getLoaded() {
+        return loaded;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+
+    // Decoding progress -> progress bar, abort the reader if cancelled
+    private class ProgressListener implements IIOReadProgressListener {
+
+        @Override
+        public void imageProgress(ImageReader source, float percentageDone) {
+            if (isCancelled()) {
+                source.abort();
+                return;
+            }
+            setProgress(Math.min(DECODING_PROGRESS, (int) (percentageDone * DECODING_PROGRESS / 100)));
+        }
+
+        @Override public void sequenceStarted(ImageReader source, int minIndex) { }
+        @Override public void sequenceComplete(ImageReader source) { }
+        @Override public void imageStarted(ImageReader source, int imageIndex) { }
+        @Override public void imageComplete(ImageReader source) { }
+        @Override public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) { }
+        @Override public void thumbnailProgress(ImageReader source, float percentageDone) { }
+        @Override public void thumbnailComplete(ImageReader source) { }
+        @Override public void readAborted(ImageReader source) { }
+    }
+}
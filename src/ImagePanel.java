@@ -1,11 +1,9 @@
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
-import java.awt.image.VolatileImage;
 import java.io.File;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.Stack;
+import java.util.ArrayList;
+import java.util.List;
 import javax.swing.*;
 import javax.swing.colorchooser.AbstractColorChooserPanel;
 import javax.swing.plaf.basic.BasicButtonUI;
@@ -13,25 +11,34 @@ import javax.swing.plaf.basic.BasicButtonUI;
 
 public class ImagePanel extends JPanel implements MouseWheelListener  {
     private final ImageHandler imageHandler;
-    private final PngPalettePriorityEditor mainWindow;
+    private final MainWindow mainWindow;
 
     private double zoom;
+    private final ImageRenderCache imageRenderCache = new ImageRenderCache(); // pre-scaled chunks of the image
 
-    private final Set<Point> selectedTiles = new HashSet<>();
+    private TileSelection selectedTiles = new TileSelection(0, 0); // sized to the mask
     private Point selectionStart = null;
     private Point selectionEnd = null;
 
-    private VolatileImage  tileOverlayBuffer = null;
-    private boolean bufferNeedsUpdate = true;
+    private final OverlayRasterizer overlayRasterizer = new OverlayRasterizer(); // draws the tiles in the buffer
+    private final PaletteLabelAtlas paletteLabels = new PaletteLabelAtlas(); // pre-rendered "0" to "3"
+    private final MaskImageOverlay maskImageOverlay = new MaskImageOverlay(); // overlay of the smallest zoom levels
+    private BufferedImage tileOverlayBuffer = null; // covers the visible tiles only
+    private Point bufferOrigin = new Point(); // tile drawn at the top-left corner of the overlay buffer
+    private int bufferTileSize = 0;
+    private boolean bufferNeedsUpdate = true;  // redraw the whole overlay
+    private final List<Rectangle> dirtyTiles = new ArrayList<>(); // regions to redraw (in tiles)
+    private Rectangle validTiles = new Rectangle(); // tiles up to date in the overlay buffer
 
-    private final Stack<Mask> undoStack = new Stack<>();
-    private final Stack<Mask> redoStack = new Stack<>();
-    
-    private static final int UNDO_LIMIT = 10;
+    private static final int MAX_DIRTY_REGIONS = 64;
+    private static final double MIN_ZOOM = 1.0 / ImageHandler.TILE_SIZE; // 1 pixel per tile
+
+    private ImageLoader imageLoader = null; // background loading in progress
+    private final UndoHistory undoHistory = new UndoHistory(); // deltas, bounded by memory
 
     private MessageHandler messageHandler = null;
     private boolean isCtrlPressed = false;
-    private boolean showPaletteIndexUserValue;
+    private boolean isAltPressed = false;
 
     private  Color GRID_BORDER_COLOR;
     private  Color GRID_HIGH_PRIORITY_BORDER_COLOR;
@@ -42,7 +49,7 @@ public class ImagePanel extends JPanel implements MouseWheelListener  {
     private Color GRID_PALETTE_INDEX_COLORS_TEXT;
 
 
-    public ImagePanel(PngPalettePriorityEditor mainFrame) {
+    public ImagePanel(MainWindow mainFrame) {
 
         this.mainWindow = mainFrame;
 
@@ -59,6 +66,7 @@ public class ImagePanel extends JPanel implements MouseWheelListener  {
 
                 if (e.getButton() == MouseEvent.BUTTON1) { // Left Click (Start Lasso Selection)
                     isCtrlPressed = e.isControlDown();
+                    isAltPressed = e.isAltDown();
                     selectionStart = e.getPoint();
                     selectionEnd = selectionStart;
 
@@ -112,12 +120,12 @@ public class ImagePanel extends JPanel implements MouseWheelListener  {
 
     private void updateMousePointerCoordsInfo() {
         
-        if(!assetsLoaded() || zoom<1)  return;
+        if(!assetsLoaded())  return;
     
         String cursorText = getMousePointerCoordsToText();
     
         // Conserver l'affichage de la sélection si elle existe
-        if (selectedTiles != null && !selectedTiles.isEmpty()) {
+        if (!selectedTiles.isEmpty()) {
             updateSelectionStatus();
         } else {
             mainWindow.updateStatusBar(cursorText);
@@ -127,15 +135,9 @@ public class ImagePanel extends JPanel implements MouseWheelListener  {
     private void updateSelectionStatus() {
         if (!assetsLoaded()) return;
 
-        if(zoom<1)  
-        {
-            mainWindow.updateStatusBar("unavailable at this zoom level");
-            return;
-        }
-
         String mousePointerCoords = getMousePointerCoordsToText();
 
-        if (selectedTiles == null || selectedTiles.isEmpty()) {
+        if (selectedTiles.isEmpty()) {
             mainWindow.updateStatusBar(mousePointerCoords);
             return;
         }
@@ -151,7 +153,7 @@ public class ImagePanel extends JPanel implements MouseWheelListener  {
             ));
         }    
         else if (selectedTiles.size() == 1) {
-            Point tile =(Point)  selectedTiles.toArray()[0];
+            Point tile = selectedTiles.first();
             mainWindow.updateStatusBar(
                 String.format("%s | Tile Selected : (%d, %d) | 1 tile", mousePointerCoords, tile.x, tile.y));
         } else {
@@ -162,56 +164,32 @@ public class ImagePanel extends JPanel implements MouseWheelListener  {
 
 
     private Rectangle getLassoSelectionBounds() {
-        if (selectedTiles == null || selectedTiles.isEmpty()) {
+        // only if selection is a full rectangle
+        if (!selectedTiles.isRectangle()) {
             return null;
         }
-    
-        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
-        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
-    
-        for (Point tile : selectedTiles) {
-            if (tile.x < minX) minX = tile.x;
-            if (tile.y < minY) minY = tile.y;
-            if (tile.x > maxX) maxX = tile.x;
-            if (tile.y > maxY) maxY = tile.y;
-        }
-    
-        // check if selection is a full rectangle
-        int width = (maxX - minX) + 1;
-        int height = (maxY - minY) + 1;
-    
-        if (selectedTiles.size() == (width * height)) {
-            return new Rectangle(minX, minY, width, height);
-        }
-    
-        return null; // not a rectangle, don't return bounds
+        return selectedTiles.getBounds();
     }
 
 
     // Get coords info (px, tiles) at the cursor position
     private String getMousePointerCoordsToText() {
         if (!assetsLoaded()) return "";
-
-        if(zoom<1)  
-        {
-            return "unavailable at this zoom level";
-        }       
         
-        PointerInfo pointerInfo = MouseInfo.getPointerInfo();
+        PointerInfo pointerInfo = GraphicsEnvironment.isHeadless() ? null : MouseInfo.getPointerInfo();
+        if (pointerInfo == null) {
+            return ""; // no mouse
+        }
         Point location = pointerInfo.getLocation();
         SwingUtilities.convertPointFromScreen(location, this);
         int tileSize = (int)(ImageHandler.TILE_SIZE * zoom);
 
         int tileX = location.x  / tileSize;
         int tileY = location.y / tileSize;
-    
-        // Récupérer les valeurs de scrolling
-        JViewport viewport = (JViewport) getParent();
-        Point viewPosition = viewport.getViewPosition();
         
-        // Calculer la position en pixel réelle dans l'image
-        int pixelX = (int) ((location.x  + viewPosition.x) / zoom);
-        int pixelY = (int) ((location.y  + viewPosition.y) / zoom);
+        // Position en pixel réelle dans l'image (location is in panel coordinates : scrolling included)
+        int pixelX = (int) (location.x / zoom);
+        int pixelY = (int) (location.y / zoom);
         
         return String.format("Cursor: (%d px, %d px) | (%d tile, %d tile)", pixelX, pixelY, tileX, tileY);
     }
@@ -228,20 +206,23 @@ public class ImagePanel extends JPanel implements MouseWheelListener  {
         int endX = Math.max(selectionStart.x, selectionEnd.x) / tileSize;
         int endY = Math.max(selectionStart.y, selectionEnd.y) / tileSize;
     
-        // unless CTRL is pressed, we clear previous selection
-        if (!isCtrlPressed) {
-            selectedTiles.clear();
-        }
-        
-        for (int y = startY; y <= endY; y++) {
-            for (int x = startX; x <= endX; x++) {
-                selectedTiles.add(new Point(x, y));
+        Rectangle lasso = new Rectangle(startX, startY, endX - startX + 1, endY - startY + 1);
+
+        if (isAltPressed) {
+            // ALT : remove the lasso area from the selection
+            selectedTiles.subtractRect(lasso);
+        } else {
+            // unless CTRL is pressed, we clear previous selection
+            if (!isCtrlPressed) {
+                markSelectionDirty();
+                selectedTiles.clear();
             }
+            selectedTiles.addRect(lasso);
         }
+        markTilesDirty(lasso);
         updateSelectionStatus();
         selectionStart = null;
         selectionEnd = null;
-        bufferNeedsUpdate = true;
         repaint();
     }
 
@@ -250,32 +231,72 @@ public class ImagePanel extends JPanel implements MouseWheelListener  {
 
     public void loadImage() 
     {
-        BufferedImage loadedImage = AppFileHandler.selectInputImage(this);
-        if (loadedImage != null) 
+        if (imageLoader != null && !imageLoader.isDone()) return; // already loading
+
+        File file = AppFileHandler.selectInputImageFile(this);
+        if (file != null) 
         {
-            int returnCode = imageHandler.setImage(loadedImage);  
-            
-            if(returnCode ==0) 
-            {
-                setPreferredSize(new Dimension(
-                    (int)(imageHandler.getImage().getWidth() * zoom), 
-                    (int)(imageHandler.getImage().getHeight() * zoom)));
+            // decode and check the image in background, the panel is updated once it's ready
+            imageLoader = new ImageLoader(this, file, mainWindow.getUseMappedMask(), this::imageLoaded);
+            imageLoader.execute();
+        }
+    }
 
-                
-                revalidate();
-                repaint();             
+    private void imageLoaded(ImageLoader loader)
+    {
+        int returnCode = loader.getReturnCode();
+        
+        if(returnCode ==0) 
+        {
+            imageHandler.setImage(loader.getLoaded());
+            showLoadedImage();
+        }
+        else{
+            this.messageHandler= new MessageHandler(returnCode,loader.getErrorMessage(), JOptionPane.ERROR_MESSAGE);
+            showMessage();            
+        }
+    }
 
-                mainWindow.allowMenuChoice();
-            }
-            else{
-                this.messageHandler= new MessageHandler(returnCode,ImageHandler.getErrorMessage(returnCode), JOptionPane.ERROR_MESSAGE);
-                showMessage();            
-            }
+
+
+    // Image already checked : used by RenderBenchmark (no file dialog nor background loading)
+    int setImage(BufferedImage image)
+    {
+        int returnCode = imageHandler.setImage(image);
+        if (returnCode == 0) {
+            showLoadedImage();
         }
+        return returnCode;
+    }
+
+    private void showLoadedImage()
+    {
+        setPreferredSize(new Dimension(
+            (int)(imageHandler.getImage().getWidth() * zoom), 
+            (int)(imageHandler.getImage().getHeight() * zoom)));
 
+        revalidate();
+        resetSelection();
+        undoHistory.clear();
+        refreshOverlay();             
 
+        mainWindow.allowMenuChoice();
     }
 
+    Mask getMask()
+    {
+        return imageHandler.getMask();
+    }
+
+    double getZoom()
+    {
+        return zoom;
+    }
+
+    int getSelectedTileCount()
+    {
+        return selectedTiles.size();
+    }
 
 
     private void showMessage()
@@ -311,7 +332,7 @@ public class ImagePanel extends JPanel implements MouseWheelListener  {
                 zoomOut();
             }
            
-            bufferNeedsUpdate = true;
+            refreshOverlay();
             setPreferredSize(new Dimension(
                 (int)(imageHandler.getImage() .getWidth() * zoom), 
                 (int)(imageHandler.getImage() .getHeight() * zoom)));
@@ -335,8 +356,7 @@ public class ImagePanel extends JPanel implements MouseWheelListener  {
                 viewPosition.y = Math.min(viewPosition.y + scrollAmount, getHeight() - viewport.getHeight());
             }  
 
-            bufferNeedsUpdate = true;
-            viewport.setViewPosition(viewPosition);          
+            viewport.setViewPosition(viewPosition); // newly visible tiles are drawn on repaint
             repaint();                        
         }
         
@@ -345,14 +365,23 @@ public class ImagePanel extends JPanel implements MouseWheelListener  {
 
     private void drawTileOverlay(Graphics g) {
         if (!assetsLoaded()) return;
+
+        int tileSize = (int)(ImageHandler.TILE_SIZE * zoom);
+        if (tileSize < PaletteLabelAtlas.MIN_TILE_SIZE) {
+            // tiles too small for borders and labels : the mask drawn as an image
+            if (!drawSelectionRectangle(g)) {
+                updateMaskImage();
+            }
+            maskImageOverlay.draw(g, tileSize);
+            return;
+        }
     
-        if ( !drawSelectionRectangle(g) && bufferNeedsUpdate) {
+        if ( !drawSelectionRectangle(g)) {
             updateTileOverlayBuffer();
-            bufferNeedsUpdate = false;
         }
       
         if (tileOverlayBuffer != null) {
-            g.drawImage(tileOverlayBuffer, 0, 0, null);
+            g.drawImage(tileOverlayBuffer, bufferOrigin.x * bufferTileSize, bufferOrigin.y * bufferTileSize, null);
         }
     }
 
@@ -371,114 +400,160 @@ public class ImagePanel extends JPanel implements MouseWheelListener  {
     }
 
     public void doScrollbarUpdate()
+    {
+        repaint(); // newly visible tiles are drawn on repaint
+    }
+
+
+    // Redraw the whole overlay (zoom, view options, new mask...)
+    public void refreshOverlay()
     {
         bufferNeedsUpdate = true;
+        dirtyTiles.clear();
         repaint();
     }
 
+    // Redraw only these tiles on next repaint
+    private void markTilesDirty(Rectangle tiles)
+    {
+        if (bufferNeedsUpdate) return;
 
-    private void allocateVolatileImage(int width, int height) {
-        GraphicsConfiguration gc = getGraphicsConfiguration();
-        if (tileOverlayBuffer != null) {
-            tileOverlayBuffer.flush(); // Libérer l'ancienne image
+        if (dirtyTiles.size() >= MAX_DIRTY_REGIONS) {
+            // too many small regions : merge them
+            Rectangle union = new Rectangle(tiles);
+            for (Rectangle region : dirtyTiles) {
+                union.add(region);
+            }
+            dirtyTiles.clear();
+            dirtyTiles.add(union);
+        } else {
+            dirtyTiles.add(new Rectangle(tiles));
         }
-        tileOverlayBuffer = gc.createCompatibleVolatileImage(width, height, Transparency.TRANSLUCENT);
     }
-    
+
+    private void markSelectionDirty()
+    {
+        if (!selectedTiles.isEmpty()) {
+            markTilesDirty(selectedTiles.getBounds());
+        }
+    }
+
 
     private void updateTileOverlayBuffer() {
         if (!assetsLoaded()) return;
         
         int tileSize = (int)(ImageHandler.TILE_SIZE * zoom);
         Mask mask = imageHandler.getMask();
-        int imageWidth = mask.getWidth() * tileSize;
-        int imageHeight = mask.getHeight() * tileSize;
+
+        // Déterminer les tuiles visibles dans la fenêtre
+        Rectangle visibleRect = getVisibleRect();
+        int startX = Math.max(0, visibleRect.x / tileSize);
+        int startY = Math.max(0, visibleRect.y / tileSize);
+        int endX = Math.min(mask.getWidth(), (visibleRect.x + visibleRect.width) / tileSize + 1);
+        int endY = Math.min(mask.getHeight(), (visibleRect.y + visibleRect.height) / tileSize + 1);
+        Rectangle visibleTiles = new Rectangle(startX, startY, Math.max(0, endX - startX), Math.max(0, endY - startY));
+
+        // The buffer only covers the viewport : its size depends on the window, not on the image
+        int bufferWidth = Math.max(1, Math.min(mask.getWidth(), visibleRect.width / tileSize + 2) * tileSize + 1);
+        int bufferHeight = Math.max(1, Math.min(mask.getHeight(), visibleRect.height / tileSize + 2) * tileSize + 1);
     
         
             // Vérifier si l'image doit être recréée
         if (tileOverlayBuffer == null || 
-            tileOverlayBuffer.getWidth() != imageWidth || 
-            tileOverlayBuffer.getHeight() != imageHeight ||
-            tileOverlayBuffer.contentsLost()) {
-            allocateVolatileImage(imageWidth, imageHeight);
+            tileOverlayBuffer.getWidth() != bufferWidth || 
+            tileOverlayBuffer.getHeight() != bufferHeight ||
+            bufferTileSize != tileSize) {
+            tileOverlayBuffer = overlayRasterizer.resize(bufferWidth, bufferHeight, tileSize);
+            bufferTileSize = tileSize;
+            bufferNeedsUpdate = true;
+        }
+
+        if (!bufferNeedsUpdate && dirtyTiles.isEmpty() && visibleTiles.getLocation().equals(bufferOrigin)
+            && validTiles.contains(visibleTiles)) {
+            return; // nothing changed
         }
  
-        do {
-            Graphics2D g2d = tileOverlayBuffer.createGraphics();
-
-            // 🔥 Correction du "fondu au blanc"
-            g2d.setComposite(AlphaComposite.Clear);
-            g2d.fillRect(0, 0, imageWidth, imageHeight);
-            g2d.setComposite(AlphaComposite.SrcOver);
-
-            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);      
-
-            FontMetrics fm = g2d.getFontMetrics();
-            int textWidth = fm.stringWidth("3");
-            int textHeight = fm.getHeight();
-            int textXCenter = (tileSize - textWidth) / 2;
-            int textYCenter = (tileSize + textHeight) / 2 - 3;
-
-            // Déterminer les tuiles visibles dans la fenêtre
-            Rectangle visibleRect = getVisibleRect();
-            int startX = Math.max(0, visibleRect.x / tileSize);
-            int startY = Math.max(0, visibleRect.y / tileSize);
-            int endX = Math.min(imageWidth, (visibleRect.x + visibleRect.width) / tileSize + 1);
-            int endY = Math.min(imageHeight, (visibleRect.y + visibleRect.height) / tileSize + 1);
-        
+        if (bufferNeedsUpdate) {
+            // colors or view options may have changed
+            overlayRasterizer.setColors(GRID_BORDER_COLOR, GRID_SELECTED_TILE_COLOR, GRID_HIGH_PRIORITY_BORDER_COLOR,
+                GRID_PALETTE_INDEX_COLORS_TILE, mainWindow.getShowGrid(), mainWindow.getViewPaletteZero());
+            overlayRasterizer.clear();
+            redrawTiles(visibleTiles, visibleTiles.getLocation(), tileSize, mask);
+        } else {
+            // scrolling : shift the tiles already drawn, then draw the newly exposed strips only
+            int dx = (bufferOrigin.x - startX) * tileSize;
+            int dy = (bufferOrigin.y - startY) * tileSize;
+            if (dx != 0 || dy != 0) {
+                overlayRasterizer.scroll(dx, dy);
+                validTiles = validTiles.intersection(new Rectangle(startX, startY, bufferWidth / tileSize, bufferHeight / tileSize));
+            }
 
-            // Parcourir uniquement les tuiles visibles
-            for (int y = startY; y < endY; y++) {
-                for (int x = startX; x < endX; x++) {
-                    int drawX = x * tileSize;
-                    int drawY = y * tileSize;
-                    int paletteIndex = mask.getTilePalette(x, y);
-                    int priority = mask.getTilePriority(x, y);
-
-                    if(mainWindow.getShowGrid())
-                    {
-                        g2d.setColor(GRID_BORDER_COLOR);
-                        g2d.drawRect(drawX, drawY, tileSize, tileSize);
-                    }
-                                        
-                    // Sélection en surbrillance
-                    if (selectedTiles.contains(new Point(x, y))) {
-                        g2d.setColor(GRID_SELECTED_TILE_COLOR);
-                        g2d.fillRect(drawX, drawY, tileSize, tileSize);
-                    }
-
-                    if (priority == 1) {
-                        g2d.setColor(GRID_HIGH_PRIORITY_BORDER_COLOR);
-                        g2d.drawRect(drawX, drawY, tileSize, tileSize);
-                    }
-
-
-                    if (paletteIndex >0 || (paletteIndex == 0 && mainWindow.getViewPaletteZero()))
-                    {
-                        // Coloration des cases en fonction de la palette
-                        g2d.setColor(GRID_PALETTE_INDEX_COLORS_TILE[paletteIndex]);
-                        g2d.fillRect(drawX, drawY, tileSize, tileSize);
-                    }
-
-                    if (
-                    (   (paletteIndex > 0 && mainWindow.getShowPaletteIndex())
-                     || (paletteIndex == 0 && mainWindow.getViewPaletteZero() && mainWindow.getShowPaletteIndex()) ) 
-                    )
-                    {
-                        // Affichage du numéro de palette 
-                        String paletteText = String.valueOf(paletteIndex);
-
-                        int textX = drawX + textXCenter;
-                        int textY = drawY + textYCenter;
-                
-                        // Couleur du texte selon l'index de palette
-                        g2d.setColor(GRID_PALETTE_INDEX_COLORS_TEXT);
-                        g2d.drawString(paletteText, textX, textY);
-                    }                
+            List<Rectangle> regions = new ArrayList<>(dirtyTiles);
+            addUncoveredRegions(regions, visibleTiles, validTiles);
+
+            for (Rectangle region : regions) {
+                Rectangle tiles = region.intersection(visibleTiles);
+                if (!tiles.isEmpty()) {
+                    redrawTiles(tiles, visibleTiles.getLocation(), tileSize, mask);
                 }
             }
-        } while (tileOverlayBuffer.contentsLost()); // Recréer si l'image est perdue
-        
+        }
+
+        bufferNeedsUpdate = false;
+        dirtyTiles.clear();
+        bufferOrigin = visibleTiles.getLocation();
+        validTiles = visibleTiles;
+    }
+
+
+    // Mask image overlay : all the tiles after a refresh, else the changed tiles only
+    private void updateMaskImage() {
+        Mask mask = imageHandler.getMask();
+        if (bufferNeedsUpdate) {
+            maskImageOverlay.setColors(GRID_SELECTED_TILE_COLOR, GRID_HIGH_PRIORITY_BORDER_COLOR,
+                GRID_PALETTE_INDEX_COLORS_TILE, mainWindow.getViewPaletteZero());
+            maskImageOverlay.update(new Rectangle(0, 0, mask.getWidth(), mask.getHeight()), mask, selectedTiles);
+        } else {
+            for (Rectangle region : dirtyTiles) {
+                maskImageOverlay.update(region, mask, selectedTiles);
+            }
+        }
+        bufferNeedsUpdate = false; // zooming back in refreshes the tile buffer
+        dirtyTiles.clear();
+    }
+
+
+    // Parts of area not covered by covered (up to 4 strips)
+    private static void addUncoveredRegions(List<Rectangle> regions, Rectangle area, Rectangle covered) {
+        Rectangle inside = area.intersection(covered);
+        if (inside.isEmpty()) {
+            regions.add(area);
+            return;
+        }
+        if (inside.y > area.y)  regions.add(new Rectangle(area.x, area.y, area.width, inside.y - area.y));
+        if (inside.y + inside.height < area.y + area.height)
+            regions.add(new Rectangle(area.x, inside.y + inside.height, area.width, area.y + area.height - inside.y - inside.height));
+        if (inside.x > area.x)  regions.add(new Rectangle(area.x, inside.y, inside.x - area.x, inside.height));
+        if (inside.x + inside.width < area.x + area.width)
+            regions.add(new Rectangle(inside.x + inside.width, inside.y, area.x + area.width - inside.x - inside.width, inside.height));
+    }
+
+
+    // Redraw a block of tiles with its last border line (borders are drawn 1 pixel over the next
+    // tiles), origin being the tile at the top-left corner of the buffer.
+    // Palette labels may overflow their tile : the labels of the tiles around are drawn too, clipped to the block.
+    private void redrawTiles(Rectangle tiles, Point origin, int tileSize, Mask mask) {
+        overlayRasterizer.draw(tiles, origin, mask, selectedTiles);
+
+        if (!mainWindow.getShowPaletteIndex()) {
+            return;
+        }
+        paletteLabels.update(tileSize, GRID_PALETTE_INDEX_COLORS_TEXT); // no-op unless the zoom or color changed
+        Rectangle clip = new Rectangle((tiles.x - origin.x) * tileSize, (tiles.y - origin.y) * tileSize,
+            tiles.width * tileSize + 1, tiles.height * tileSize + 1);
+        Rectangle withNeighbours = new Rectangle(tiles.x - 1, tiles.y - 1, tiles.width + 2, tiles.height + 2);
+        overlayRasterizer.drawLabels(withNeighbours.intersection(new Rectangle(0, 0, mask.getWidth(), mask.getHeight())),
+            origin, clip, mask, paletteLabels, mainWindow.getViewPaletteZero());
     }
 
     private void openTilePropertiesDialog() 
@@ -487,7 +562,7 @@ public class ImagePanel extends JPanel implements MouseWheelListener  {
         if(selectedTiles.isEmpty()) return;
     
         // Get the first selected tile
-        Point firstTile = selectedTiles.iterator().next();  
+        Point firstTile = selectedTiles.first();  
         Tile firstTileData = imageHandler.getMask().getTile(firstTile.x, firstTile.y);
     
         // Create the dialog
@@ -540,10 +615,10 @@ public class ImagePanel extends JPanel implements MouseWheelListener  {
             int newPriority = priorityHigh.isSelected() ? 1 : 0;
     
             // Apply changes to all selected tiles
-            saveStateForUndo();
-            for (Point p : selectedTiles) {
-                imageHandler.getMask().setTileProperties(p.x, p.y, newPalette, newPriority);
-            }
+            MaskEdit edit = new MaskEdit(imageHandler.getMask());
+            imageHandler.getMask().fillSelection(selectedTiles, newPalette, newPriority, edit);
+            markSelectionDirty();
+            endEdit(edit);
     
             dialog.dispose();
             repaint();
@@ -564,9 +639,9 @@ public class ImagePanel extends JPanel implements MouseWheelListener  {
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
         if (imageHandler.getImage() != null) {
-            g.drawImage(imageHandler.getImage(), 0, 0, 
+            imageRenderCache.draw(g, imageHandler.getImage(),
                         (int)(imageHandler.getImage().getWidth() * zoom), 
-                        (int)(imageHandler.getImage().getHeight() * zoom), null);
+                        (int)(imageHandler.getImage().getHeight() * zoom), getGraphicsConfiguration());
         }
     
         drawTileOverlay(g);  
@@ -622,86 +697,85 @@ public class ImagePanel extends JPanel implements MouseWheelListener  {
 
     public void loadMask() 
     {
-        Mask mask = AppFileHandler.loadMask(this);
+        Mask mask = AppFileHandler.loadMask(this, mainWindow.getUseMappedMask());
 
         if(mask != null)
         {
             imageHandler.setMask(mask);
-            repaint();
+            resetSelection();
+            undoHistory.clear();
+            refreshOverlay();
         }
     }
  
 
+    // Palette labels stay available down to x0.5 (pre-rendered, see PaletteLabelAtlas).
+    // Below x0.5 the zoom is halved down to 1 pixel per tile, the overlay being the mask image.
     private void zoomIn() {
-        if(zoom < 1)
-        {            
-            mainWindow.toggleViewPaletteItem(true);
-            mainWindow.setShowPaletteIndex(showPaletteIndexUserValue);
-        }        
-        if (zoom < 6.0) { // max x6
+        if (zoom < 0.5) {
+            zoom *= 2;
+        } else if (zoom < 6.0) { // max x6
             zoom += 0.5;
-            showPaletteIndexUserValue = mainWindow.getShowPaletteIndex();
         }
     }
     
     private void zoomOut() {
-        if (zoom > 0.5) { // Min x0.5
+        if (zoom > 0.5) {
             zoom -= 0.5;
-            showPaletteIndexUserValue = mainWindow.getShowPaletteIndex();
-        }
-        if(zoom < 1)
-        {
-            mainWindow.toggleViewPaletteItem(false);
-            mainWindow.setShowPaletteIndex(false);
+        } else if (zoom > MIN_ZOOM) { // Min : 1 pixel per tile
+            zoom /= 2;
         }
     }
 
 
-    public Mask getMaskStack(Stack<Mask> stack)
-    {
-        if (!stack.isEmpty()) 
-            return stack.pop();
-        else
-            return null;
+    // Empty selection, sized to the current mask
+    private void resetSelection() {
+        Mask mask = imageHandler.getMask();
+        selectedTiles = mask != null ? new TileSelection(mask.getWidth(), mask.getHeight()) : new TileSelection(0, 0);
     }
 
-
-    public void saveStateForUndo() {
-        // Copier le mask actuel pour l'empiler
-        Mask maskCopy = new Mask(imageHandler.getMask());
-    
-        // Ajouter dans la pile
-        undoStack.push(maskCopy);
-    
-        // Limiter à 5 actions max
-        if (undoStack.size() > UNDO_LIMIT) {
-            undoStack.remove(0); // Supprime l'état le plus ancien
+    // Finish a change of the mask and add it to the history
+    private void endEdit(MaskEdit edit) {
+        if (edit.finish()) {
+            undoHistory.push(edit);
         }
-    }   
+    }
     
     private void undoLastAction() {
-        redoStack.push(new Mask(imageHandler.getMask()));
-        Mask previousMask = getMaskStack(undoStack);
-        if (previousMask!=null) 
+        MaskEdit edit = undoHistory.undo();
+        if (edit != null) 
         {
-            imageHandler.setMask(previousMask);
-            repaint();
+            markSelectionDirty();
             selectedTiles.clear();
+            markTilesDirty(edit.getBounds());
         }
     }
 
     private void redoLastAction() {
-        undoStack.push(new Mask(imageHandler.getMask()));
-        Mask nextMask = getMaskStack(redoStack);
-        if (nextMask!=null) 
+        MaskEdit edit = undoHistory.redo();
+        if (edit != null) 
         {
-            imageHandler.setMask(nextMask);
-            repaint();
+            markSelectionDirty();
             selectedTiles.clear();
+            markTilesDirty(edit.getBounds());
         }
     }    
 
 
+    // One pass over the mask, one undo step
+    private void setSelectedTilesPriority(int priority) {
+        MaskEdit edit = new MaskEdit(imageHandler.getMask());
+        imageHandler.getMask().setPriority(selectedTiles, priority, edit);
+        endEdit(edit);
+    }
+
+    private void setSelectedTilesPalette(int paletteIndex) {
+        MaskEdit edit = new MaskEdit(imageHandler.getMask());
+        imageHandler.getMask().setPalette(selectedTiles, paletteIndex, edit);
+        endEdit(edit);
+    }
+
+
     public void handleKeyPress(KeyEvent e) 
     {
         if (!assetsLoaded()) return;   
@@ -725,74 +799,61 @@ public class ImagePanel extends JPanel implements MouseWheelListener  {
             case KeyEvent.VK_DOWN : viewPosition.y = Math.min(viewPosition.y + scrollAmount, getHeight() - viewport.getHeight());break;
 
             case KeyEvent.VK_H : {
-                    saveStateForUndo();
                     // Met toutes les TILEs sélectionnées en priorité haute (1)                
-                    for (Point p : selectedTiles) {                    
-                        imageHandler.getMask().setTileProperties(p.x, p.y, imageHandler.getMask().getTilePalette(p.x, p.y), 1);
-                    }
+                    setSelectedTilesPriority(1);
+                    markSelectionDirty();
                 }
             break;
 
             case KeyEvent.VK_L : {
-                    saveStateForUndo();
                     // Met toutes les TILEs sélectionnées en priorité basse (0)
-                    for (Point p : selectedTiles) {
-                        imageHandler.getMask().setTileProperties(p.x, p.y, imageHandler.getMask().getTilePalette(p.x, p.y), 0);
-                    }
+                    setSelectedTilesPriority(0);
+                    markSelectionDirty();
                 }
             break;
 
             case KeyEvent.VK_0:
             case KeyEvent.VK_NUMPAD0 : {
-                    saveStateForUndo();
                     // Modifie la palette de toutes les TILEs sélectionnées (0 à 3)
                     int paletteIndex = 0;
 
-                    for (Point p : selectedTiles) {
-                        imageHandler.getMask().setTileProperties(p.x, p.y, paletteIndex, imageHandler.getMask().getTilePriority(p.x, p.y));
-                    }
+                    setSelectedTilesPalette(paletteIndex);
+                    markSelectionDirty();
                 }  
             break;
 
             case KeyEvent.VK_1:
             case KeyEvent.VK_NUMPAD1 : {
-                    saveStateForUndo();
                     // Modifie la palette de toutes les TILEs sélectionnées (0 à 3)
                     int paletteIndex = 1;
 
-                    for (Point p : selectedTiles) {
-                        imageHandler.getMask().setTileProperties(p.x, p.y, paletteIndex, imageHandler.getMask().getTilePriority(p.x, p.y));
-                    }
+                    setSelectedTilesPalette(paletteIndex);
+                    markSelectionDirty();
                 }  
             break;
 
             case KeyEvent.VK_2:
             case KeyEvent.VK_NUMPAD2 : {
-                    saveStateForUndo();
                     // Modifie la palette de toutes les TILEs sélectionnées (0 à 3)
                     int paletteIndex = 2;
 
-                    for (Point p : selectedTiles) {
-                        imageHandler.getMask().setTileProperties(p.x, p.y, paletteIndex, imageHandler.getMask().getTilePriority(p.x, p.y));
-                    }
+                    setSelectedTilesPalette(paletteIndex);
+                    markSelectionDirty();
                 }        
             break;      
 
             
             case KeyEvent.VK_3:
             case KeyEvent.VK_NUMPAD3 : {
-                    saveStateForUndo();
                     // Modifie la palette de toutes les TILEs sélectionnées (0 à 3)
                     int paletteIndex = 3;
 
-                    for (Point p : selectedTiles) {
-                        imageHandler.getMask().setTileProperties(p.x, p.y, paletteIndex, imageHandler.getMask().getTilePriority(p.x, p.y));
-                    }
+                    setSelectedTilesPalette(paletteIndex);
+                    markSelectionDirty();
                 }     
             break;
 
         }
-        bufferNeedsUpdate = true;
         viewport.setViewPosition(viewPosition);
         revalidate();
         repaint();
@@ -934,7 +995,7 @@ public class ImagePanel extends JPanel implements MouseWheelListener  {
             GRID_PALETTE_INDEX_COLORS_TILE[i] = colors[i + 5];
         }
     
-        repaint();
+        refreshOverlay();
     }   
     
 
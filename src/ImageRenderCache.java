@@ -0,0 +1,197 @@
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Render cache of the image displayed by ImagePanel.
+//
+// Drawing an indexed image scaled goes through the slow IndexColorModel path, on the whole image.
+// The image is converted once to an RGB image compatible with the screen, then cut in chunks of
+// CHUNK_SIZE x CHUNK_SIZE pixels pre-scaled to the zoom level. Painting only draws the chunks
+// intersecting the clip. Chunks are kept in a LRU cache bounded by memoryLimit bytes.
+public class ImageRenderCache {
+
+    public static final int CHUNK_SIZE = 256;
+    public static final long DEFAULT_MEMORY_LIMIT = 64L * 1024 * 1024;
+
+    private final long memoryLimit;
+
+    private BufferedImage source = null;    // image given by the caller
+    private BufferedImage converted = null; // same image, in a screen compatible format
+    private int transparency = Transparency.OPAQUE;
+    private GraphicsConfiguration configuration = null;
+
+    private final LinkedHashMap<ChunkKey, BufferedImage> chunks = new LinkedHashMap<>(64, 0.75f, true); // access order
+    private long memoryUsed = 0;
+
+
+
+    public ImageRenderCache() {
+        this(DEFAULT_MEMORY_LIMIT);
+    }
+
+    public ImageRenderCache(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+
+    // Draw the image scaled to (scaledWidth, scaledHeight) at (0, 0), as g.drawImage(image, 0, 0, scaledWidth, scaledHeight, null) would
+    public void draw(Graphics g, BufferedImage image, int scaledWidth, int scaledHeight, GraphicsConfiguration gc) {
+        if (image == null || scaledWidth <= 0 || scaledHeight <= 0) {
+            return;
+        }
+        if (image != source || (gc != null && gc != configuration)) {
+            setSource(image, gc);
+        }
+
+        Rectangle clip = g.getClipBounds();
+        Rectangle area = new Rectangle(0, 0, scaledWidth, scaledHeight);
+        if (clip != null) {
+            area = area.intersection(clip);
+        }
+        if (area.isEmpty()) {
+            return;
+        }
+
+        // x1 : the converted image is drawn as is
+        if (scaledWidth == image.getWidth() && scaledHeight == image.getHeight()) {
+            g.drawImage(converted, area.x, area.y, area.x + area.width, area.y + area.height,
+                        area.x, area.y, area.x + area.width, area.y + area.height, null);
+            return;
+        }
+
+        int firstX = area.x / CHUNK_SIZE;
+        int firstY = area.y / CHUNK_SIZE;
+        int lastX = (area.x + area.width - 1) / CHUNK_SIZE;
+        int lastY = (area.y + area.height - 1) / CHUNK_SIZE;
+
+        for (int cy = firstY; cy <= lastY; cy++) {
+            for (int cx = firstX; cx <= lastX; cx++) {
+                g.drawImage(getChunk(cx, cy, scaledWidth, scaledHeight), cx * CHUNK_SIZE, cy * CHUNK_SIZE, null);
+            }
+        }
+    }
+
+
+    // Drop everything (new image, or the image content was modified)
+    public void clear() {
+        for (BufferedImage chunk : chunks.values()) {
+            chunk.flush();
+        }
+        chunks.clear();
+        memoryUsed = 0;
+
+        if (converted != null) {
+            converted.flush();
+        }
+        converted = null;
+        source = null;
+    }
+
+    public long getMemoryUsed() {
+        return memoryUsed;
+    }
+
+
+    private void setSource(BufferedImage image, GraphicsConfiguration gc) {
+        clear();
+        source = image;
+        configuration = gc;
+        transparency = image.getColorModel().getTransparency(); // keep the transparent color of the PNG
+
+        converted = createImage(image.getWidth(), image.getHeight());
+        Graphics2D g2d = converted.createGraphics();
+        g2d.drawImage(image, 0, 0, null);
+        g2d.dispose();
+    }
+
+
+    private BufferedImage getChunk(int cx, int cy, int scaledWidth, int scaledHeight) {
+        ChunkKey key = new ChunkKey(cx, cy, scaledWidth, scaledHeight);
+        BufferedImage chunk = chunks.get(key);
+        if (chunk != null) {
+            return chunk;
+        }
+
+        int x = cx * CHUNK_SIZE;
+        int y = cy * CHUNK_SIZE;
+        int width = Math.min(CHUNK_SIZE, scaledWidth - x);
+        int height = Math.min(CHUNK_SIZE, scaledHeight - y);
+        double scaleX = (double) scaledWidth / source.getWidth();
+        double scaleY = (double) scaledHeight / source.getHeight();
+
+        // Source pixels covering the chunk (1 pixel of margin for the rounding)
+        int srcX = Math.max(0, (int) Math.floor(x / scaleX) - 1);
+        int srcY = Math.max(0, (int) Math.floor(y / scaleY) - 1);
+        int srcEndX = Math.min(source.getWidth(), (int) Math.ceil((x + width) / scaleX) + 1);
+        int srcEndY = Math.min(source.getHeight(), (int) Math.ceil((y + height) / scaleY) + 1);
+
+        chunk = createImage(width, height);
+        Graphics2D g2d = chunk.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        g2d.translate(-x, -y);
+        g2d.scale(scaleX, scaleY);
+        g2d.drawImage(converted.getSubimage(srcX, srcY, srcEndX - srcX, srcEndY - srcY), srcX, srcY, null);
+        g2d.dispose();
+
+        chunks.put(key, chunk);
+        memoryUsed += (long) width * height * 4;
+        evict();
+        return chunk;
+    }
+
+    // Remove the least recently drawn chunks until the cache fits in its memory limit
+    private void evict() {
+        Iterator<Map.Entry<ChunkKey, BufferedImage>> it = chunks.entrySet().iterator();
+        while (memoryUsed > memoryLimit && chunks.size() > 1 && it.hasNext()) {
+            BufferedImage chunk = it.next().getValue();
+            memoryUsed -= (long) chunk.getWidth() * chunk.getHeight() * 4;
+            chunk.flush();
+            it.remove();
+        }
+    }
+
+
+    private BufferedImage createImage(int width, int height) {
+        if (configuration != null && !GraphicsEnvironment.isHeadless()) {
+            return configuration.createCompatibleImage(width, height, transparency);
+        }
+        return new BufferedImage(width, height, transparency == Transparency.OPAQUE ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+    }
+
+
+    private static final class ChunkKey {
+        private final int cx;
+        private final int cy;
+        private final int scaledWidth;
+        private final int scaledHeight;
+
+        ChunkKey(int cx, int cy, int scaledWidth, int scaledHeight) {
+            this.cx = cx;
+            this.cy = cy;
+            this.scaledWidth = scaledWidth;
+            this.scaledHeight = scaledHeight;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ChunkKey)) {
+                return false;
+            }
+            ChunkKey other = (ChunkKey) o;
+            return cx == other.cx && cy == other.cy && scaledWidth == other.scaledWidth && scaledHeight == other.scaledHeight;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((cx * 31 + cy) * 31 + scaledWidth) * 31 + scaledHeight;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import javax.imageio.ImageIO;
+
+// Decoder for the only input the tool accepts : 8bpp indexed, non-interlaced PNG.
+//
+// The IDAT stream is inflated and unfiltered straight into the pixel bytes, and each row is
+// checked for color indices above 15 while it's still in cache, so no separate validation pass
+// is needed (see getInvalidPixel). Other PNG (other color types or depths, interlaced) are left
+// to ImageIO : readHeader() returns false for them.
+//
+// Usage :
+//    IndexedPngDecoder decoder = new IndexedPngDecoder(in);
+//    if (decoder.readHeader()) image = decoder.decodeImage(null);   // or decodeRows(handler)
+public class IndexedPngDecoder {
+
+    private static final long PNG_SIGNATURE = 0x89504E470D0A1A0AL;
+
+    private static final int IHDR = 0x49484452;
+    private static final int PLTE = 0x504C5445;
+    private static final int TRNS = 0x74524E53;
+    private static final int IDAT = 0x49444154;
+    private static final int IEND = 0x49454E44;
+
+    private static final int COLOR_TYPE_PALETTE = 3;
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    // Called for each decoded row, the width pixels of row y being data[offset, offset + width[.
+    // The data is only valid during the call (decodeRows reuses it).
+    public interface RowHandler {
+        void handleRow(int y, byte[] data, int offset) throws IOException;
+    }
+
+    private final DataInputStream in;
+
+    private int width;
+    private int height;
+    private IndexColorModel colorModel;
+
+    // IDAT stream
+    private final Inflater inflater = new Inflater();
+    private final byte[] filterType = new byte[1];
+    private byte[] chunkData = new byte[0];
+    private int idatRemaining = 0; // bytes of the current IDAT chunk not read yet
+    private boolean lastIdat = false;
+
+    // first pixel above 15
+    private Point invalidPixel = null;
+    private int invalidPixelColor = 0;
+
+
+
+    public IndexedPngDecoder(InputStream in) {
+        this.in = new DataInputStream(in instanceof BufferedInputStream ? in : new BufferedInputStream(in, 65536));
+    }
+
+
+    // Decode a PNG file : with this decoder when possible, else with ImageIO
+    public static BufferedImage read(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            IndexedPngDecoder decoder = new IndexedPngDecoder(in);
+            try {
+                if (decoder.readHeader()) {
+                    return decoder.decodeImage(null);
+                }
+            } finally {
+                decoder.end();
+            }
+        }
+        return ImageIO.read(file);
+    }
+
+
+    // Read the chunks up to the image data. Returns false if the image isn't an 8bpp
+    // non-interlaced indexed PNG (including not a PNG at all) : use ImageIO for those.
+    public boolean readHeader() throws IOException {
+        long signature;
+        try {
+            signature = in.readLong();
+        } catch (EOFException e) {
+            return false;
+        }
+        if (signature != PNG_SIGNATURE) {
+            return false;
+        }
+
+        int length = in.readInt();
+        if (in.readInt() != IHDR || length != 13) {
+            throw new IOException("Invalid PNG: IHDR chunk expected");
+        }
+        width = in.readInt();
+        height = in.readInt();
+        int bitDepth = in.readUnsignedByte();
+        int colorType = in.readUnsignedByte();
+        int compression = in.readUnsignedByte();
+        int filter = in.readUnsignedByte();
+        int interlace = in.readUnsignedByte();
+        in.readInt(); // CRC
+
+        if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE - 8) {
+            throw new IOException("Invalid PNG size: " + width + "x" + height);
+        }
+        if (colorType != COLOR_TYPE_PALETTE || bitDepth != 8 || compression != 0 || filter != 0 || interlace != 0) {
+            return false;
+        }
+
+        // Same palette as ImageIO : 256 entries, the missing ones opaque
+        byte[] reds = new byte[256];
+        byte[] greens = new byte[256];
+        byte[] blues = new byte[256];
+        byte[] alphas = null;
+        boolean hasPalette = false;
+
+        while (true) {
+            length = in.readInt();
+            int type = in.readInt();
+            if (length < 0) {
+                throw new IOException("Invalid PNG chunk length");
+            }
+
+            if (type == IDAT) {
+                if (!hasPalette) {
+                    throw new IOException("Invalid PNG: no PLTE chunk");
+                }
+                idatRemaining = length;
+                break;
+            } else if (type == PLTE) {
+                if (length % 3 != 0 || length > 768) {
+                    throw new IOException("Invalid PNG: bad PLTE chunk");
+                }
+                byte[] palette = readChunkData(length);
+                int entries = length / 3;
+                for (int i = 0; i < entries; i++) {
+                    reds[i] = palette[i * 3];
+                    greens[i] = palette[i * 3 + 1];
+                    blues[i] = palette[i * 3 + 2];
+                }
+                // like ImageIO : palette rounded up to 2, 4, 16 or 256 entries with black,
+                // then the last of these entries repeated up to 256
+                int rounded = entries > 16 ? 256 : entries > 4 ? 16 : entries > 2 ? 4 : 2;
+                Arrays.fill(reds, rounded, 256, reds[rounded - 1]);
+                Arrays.fill(greens, rounded, 256, greens[rounded - 1]);
+                Arrays.fill(blues, rounded, 256, blues[rounded - 1]);
+                hasPalette = true;
+            } else if (type == TRNS) {
+                byte[] transparency = readChunkData(length);
+                alphas = new byte[256];
+                Arrays.fill(alphas, (byte) 0xFF);
+                System.arraycopy(transparency, 0, alphas, 0, Math.min(256, length));
+            } else if (type == IEND) {
+                throw new IOException("Invalid PNG: no image data");
+            } else {
+                skipFully(length);
+            }
+            in.readInt(); // CRC
+        }
+
+        colorModel = alphas != null ? new IndexColorModel(8, 256, reds, greens, blues, alphas)
+                                    : new IndexColorModel(8, 256, reds, greens, blues);
+        return true;
+    }
+
+
+    // Decode the whole image into one byte array, wrapped (not copied) in a BufferedImage.
+    // progress, if not null, is called once each row is decoded (it may throw to abort).
+    public BufferedImage decodeImage(RowHandler progress) throws IOException {
+        byte[] pixels = new byte[width * height];
+
+        // row y is unfiltered in place, row y-1 just before it is its prior row
+        byte[] zeroRow = new byte[width];
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            if (y == 0) {
+                decodeRow(y, pixels, offset, zeroRow, 0);
+            } else {
+                decodeRow(y, pixels, offset, pixels, offset - width);
+            }
+            if (progress != null) {
+                progress.handleRow(y, pixels, offset);
+            }
+        }
+
+        return createImage(pixels, width, height, colorModel);
+    }
+
+    // Decode the image row by row, with 2 row buffers only
+    public void decodeRows(RowHandler handler) throws IOException {
+        byte[] row = new byte[width];
+        byte[] prior = new byte[width];
+
+        for (int y = 0; y < height; y++) {
+            decodeRow(y, row, 0, prior, 0);
+            handler.handleRow(y, row, 0);
+
+            byte[] swap = prior;
+            prior = row;
+            row = swap;
+        }
+    }
+
+    // Free the inflater (the stream isn't closed)
+    public void end() {
+        inflater.end();
+    }
+
+
+    // 8bpp BufferedImage using the pixels array as is
+    public static BufferedImage createImage(byte[] pixels, int width, int height, IndexColorModel colorModel) {
+        DataBufferByte buffer = new DataBufferByte(pixels, width * height);
+        WritableRaster raster = Raster.createInterleavedRaster(buffer, width, height, width, 1, new int[] { 0 }, null);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public IndexColorModel getColorModel() {
+        return colorModel;
+    }
+
+    // First pixel (row order) using a color index above 15, null if none. Valid once decoded
+    public Point getInvalidPixel() {
+        return invalidPixel;
+    }
+
+    public int getInvalidPixelColor() {
+        return invalidPixelColor;
+    }
+
+
+    // Inflate and unfilter one row into data[offset, offset + width[, prior being the row above
+    private void decodeRow(int y, byte[] data, int offset, byte[] prior, int priorOffset) throws IOException {
+        inflateFully(filterType, 0, 1);
+        inflateFully(data, offset, width);
+
+        int end = offset + width;
+        int high = 0; // OR of the 4 high bits of the pixels
+
+        switch (filterType[0]) {
+            case FILTER_NONE:
+                for (int i = offset; i < end; i++) {
+                    high |= data[i];
+                }
+                break;
+
+            case FILTER_SUB: {
+                int left = 0;
+                for (int i = offset; i < end; i++) {
+                    left = (data[i] + left) & 0xFF;
+                    data[i] = (byte) left;
+                    high |= left;
+                }
+                break;
+            }
+
+            case FILTER_UP:
+                for (int i = offset, p = priorOffset; i < end; i++, p++) {
+                    int value = (data[i] + prior[p]) & 0xFF;
+                    data[i] = (byte) value;
+                    high |= value;
+                }
+                break;
+
+            case FILTER_AVERAGE: {
+                int left = 0;
+                for (int i = offset, p = priorOffset; i < end; i++, p++) {
+                    left = (data[i] + ((left + (prior[p] & 0xFF)) >>> 1)) & 0xFF;
+                    data[i] = (byte) left;
+                    high |= left;
+                }
+                break;
+            }
+
+            case FILTER_PAETH: {
+                int left = 0;
+                int upperLeft = 0;
+                for (int i = offset, p = priorOffset; i < end; i++, p++) {
+                    int up = prior[p] & 0xFF;
+                    left = (data[i] + paeth(left, up, upperLeft)) & 0xFF;
+                    data[i] = (byte) left;
+                    upperLeft = up;
+                    high |= left;
+                }
+                break;
+            }
+
+            default:
+                throw new IOException("Invalid PNG: unknown filter type " + filterType[0] + " on row " + y);
+        }
+
+        if ((high & 0xF0) != 0 && invalidPixel == null) {
+            for (int i = offset; i < end; i++) {
+                if ((data[i] & 0xF0) != 0) {
+                    invalidPixel = new Point(i - offset, y);
+                    invalidPixelColor = data[i] & 0xFF;
+                    break;
+                }
+            }
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+
+    // Inflate exactly length bytes of image data, reading the next IDAT chunks as needed
+    private void inflateFully(byte[] dst, int offset, int length) throws IOException {
+        try {
+            while (length > 0) {
+                int inflated = inflater.inflate(dst, offset, length);
+                offset += inflated;
+                length -= inflated;
+
+                if (inflated == 0) {
+                    if (inflater.finished() || inflater.needsDictionary()) {
+                        throw new IOException("Invalid PNG: image data too short");
+                    }
+                    if (inflater.needsInput()) {
+                        fillInflater();
+                    }
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid PNG: " + e.getMessage(), e);
+        }
+    }
+
+    private void fillInflater() throws IOException {
+        while (idatRemaining == 0) {
+            if (lastIdat) {
+                throw new IOException("Invalid PNG: image data too short");
+            }
+            in.readInt(); // CRC of the previous IDAT
+            int length = in.readInt();
+            int type = in.readInt();
+            if (type != IDAT) {
+                lastIdat = true; // IDAT chunks must be consecutive
+                continue;
+            }
+            idatRemaining = length;
+        }
+
+        int length = Math.min(idatRemaining, 65536);
+        if (chunkData.length < length) {
+            chunkData = new byte[length];
+        }
+        in.readFully(chunkData, 0, length);
+        idatRemaining -= length;
+        inflater.setInput(chunkData, 0, length);
+    }
+
+
+    private byte[] readChunkData(int length) throws IOException {
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return data;
+    }
+
+    private void skipFully(int length) throws IOException {
+        while (length > 0) {
+            int skipped = (int) in.skip(length);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            length -= skipped;
+        }
+    }
+}
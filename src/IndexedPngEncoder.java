@@ -0,0 +1,475 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Encoder for the exported images : 8bpp indexed PNG, written straight from the pixel bytes.
+//
+// The IDAT stream is compressed in blocks of rows which can be deflated in parallel, as pigz does :
+// each block is a raw deflate stream ended by a sync flush (the last one by a final block), primed
+// with the last 32 KB of the previous block as dictionary, and the zlib checksum of the whole data
+// is combined from the checksums of the blocks. With 1 thread the blocks are deflated in turn.
+public class IndexedPngEncoder {
+
+    public static final int FILTER_NONE = 0;     // no filter : usually the best for indexed images
+    public static final int FILTER_ADAPTIVE = 1; // per row, the cheapest of None/Sub/Up (sum of abs. differences)
+
+    public static final int DEFAULT_COMPRESSION_LEVEL = 4; // as ImageIO : good ratio, still fast
+    public static final int DEFAULT_FILTER = FILTER_ADAPTIVE;
+
+    private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+    private static final int BLOCK_SIZE = 256 * 1024; // uncompressed bytes per deflate block
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int IDAT_SIZE = 64 * 1024;
+
+    private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+    private int filter = DEFAULT_FILTER;
+    private int threads = 0; // 0 = one per core
+
+
+
+    // Setters return the encoder, so it can be configured in one line
+    public IndexedPngEncoder setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, compressionLevel));
+        return this;
+    }
+
+    public IndexedPngEncoder setFilter(int filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    public IndexedPngEncoder setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+
+    // True if the image can be written by this encoder (8bpp indexed, pixels stored as bytes)
+    public static boolean canEncode(BufferedImage image) {
+        return image.getColorModel() instanceof IndexColorModel
+            && image.getColorModel().getPixelSize() == 8
+            && IndexedRaster.of(image) != null;
+    }
+
+
+    public void write(BufferedImage image, File file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), IDAT_SIZE)) {
+            write(image, out);
+        }
+    }
+
+    public void write(BufferedImage image, OutputStream output) throws IOException {
+        IndexedRaster pixels = IndexedRaster.of(image);
+        if (pixels == null || !(image.getColorModel() instanceof IndexColorModel)) {
+            throw new IOException("Not an 8bpp indexed image");
+        }
+        IndexColorModel colorModel = (IndexColorModel) image.getColorModel();
+        DataOutputStream out = new DataOutputStream(output);
+
+        out.write(PNG_SIGNATURE);
+        writeHeader(out, pixels.getWidth(), pixels.getHeight());
+        writePalette(out, colorModel);
+
+        try (BlockWriter blocks = new BlockWriter(out, pixels.getWidth(), pixels.getHeight())) {
+            for (int firstRow = 0; firstRow < pixels.getHeight(); firstRow += blocks.rowsPerBlock) {
+                blocks.submit(pixels, firstRow, Math.min(pixels.getHeight(), firstRow + blocks.rowsPerBlock));
+            }
+            blocks.finish();
+        }
+        writeChunk(out, "IEND", new byte[0], 0);
+        out.flush();
+    }
+
+    // Streaming : the rows are given one by one (RowWriter.writeRow) and compressed as soon as
+    // a block of rows is complete, so only a few blocks are in memory whatever the image height.
+    public RowWriter start(OutputStream output, int width, int height, IndexColorModel colorModel) throws IOException {
+        DataOutputStream out = new DataOutputStream(output);
+        out.write(PNG_SIGNATURE);
+        writeHeader(out, width, height);
+        writePalette(out, colorModel);
+        return new RowWriter(out, width, height);
+    }
+
+
+    private static void writeHeader(DataOutputStream out, int width, int height) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream data = new DataOutputStream(header);
+        data.writeInt(width);
+        data.writeInt(height);
+        data.writeByte(8); // bit depth
+        data.writeByte(3); // color type : indexed
+        data.writeByte(0); // deflate
+        data.writeByte(0); // adaptive filtering
+        data.writeByte(0); // no interlace
+        writeChunk(out, "IHDR", header.toByteArray(), header.size());
+    }
+
+    // PLTE with all the entries of the color model, tRNS if some are transparent
+    private static void writePalette(DataOutputStream out, IndexColorModel colorModel) throws IOException {
+        int size = Math.min(256, colorModel.getMapSize());
+        byte[] palette = new byte[size * 3];
+        byte[] alphas = new byte[size];
+        int lastTransparent = -1;
+
+        for (int i = 0; i < size; i++) {
+            int rgb = colorModel.getRGB(i);
+            palette[i * 3] = (byte) (rgb >> 16);
+            palette[i * 3 + 1] = (byte) (rgb >> 8);
+            palette[i * 3 + 2] = (byte) rgb;
+            alphas[i] = (byte) (rgb >>> 24);
+            if (alphas[i] != (byte) 0xFF) {
+                lastTransparent = i;
+            }
+        }
+
+        writeChunk(out, "PLTE", palette, palette.length);
+        if (lastTransparent >= 0) {
+            writeChunk(out, "tRNS", alphas, lastTransparent + 1);
+        }
+    }
+
+
+    // zlib stream of the filtered rows, split in IDAT chunks.
+    // Blocks of rows are compressed in turn, or by the pool threads while the previous ones are written.
+    private final class BlockWriter implements Closeable {
+        final int rowsPerBlock;
+        private final int height;
+        private final IdatOutputStream idat;
+        private final ExecutorService pool;
+        private final int maxPending;
+        private final ArrayDeque<Future<Block>> pending = new ArrayDeque<>();
+
+        BlockWriter(DataOutputStream out, int width, int height) throws IOException {
+            this.height = height;
+            rowsPerBlock = Math.max(1, BLOCK_SIZE / (width + 1));
+            int blocks = (height + rowsPerBlock - 1) / rowsPerBlock;
+            int workers = Math.min(threads > 0 ? threads : Runtime.getRuntime().availableProcessors(), blocks);
+            pool = workers > 1 ? Executors.newFixedThreadPool(workers) : null;
+            maxPending = workers * 2; // bounds the memory used by the blocks waiting to be written
+
+            idat = new IdatOutputStream(out);
+            idat.write(0x78);
+            idat.write(zlibFlags(compressionLevel));
+        }
+
+        // Compress rows [firstRow, endRow[ : pixels must hold them, and the rows of the dictionary before them
+        void submit(IndexedRaster pixels, int firstRow, int endRow) throws IOException {
+            boolean last = endRow == height;
+            if (pool == null) {
+                idat.write(compressBlock(pixels, firstRow, endRow, last));
+                return;
+            }
+
+            pending.add(pool.submit(() -> compressBlock(pixels, firstRow, endRow, last)));
+            while (pending.size() > maxPending) {
+                idat.write(waitFor(pending.poll()));
+            }
+        }
+
+        void finish() throws IOException {
+            while (!pending.isEmpty()) {
+                idat.write(waitFor(pending.poll()));
+            }
+            idat.writeInt(idat.adler);
+            idat.close();
+        }
+
+        private Block waitFor(Future<Block> result) throws IOException {
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("PNG encoding interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IOException("PNG encoding failed", e.getCause());
+            }
+        }
+
+        @Override
+        public void close() {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+
+    // Rows of a streamed image (see start). Each block is handed to the compression with the rows
+    // before it needed for its dictionary, then the buffer is replaced.
+    public final class RowWriter implements Closeable {
+        private final DataOutputStream out;
+        private final BlockWriter blocks;
+        private final int width;
+        private final int height;
+        private final int contextRows; // rows kept before a block : dictionary + prior row
+
+        private byte[] buffer;
+        private int bufferFirstRow = 0;
+        private int blockFirstRow = 0;
+        private int nextRow = 0;
+
+        private RowWriter(DataOutputStream out, int width, int height) throws IOException {
+            this.out = out;
+            this.width = width;
+            this.height = height;
+            blocks = new BlockWriter(out, width, height);
+            contextRows = (DICTIONARY_SIZE + width) / (width + 1) + 1;
+            buffer = new byte[(contextRows + blocks.rowsPerBlock) * width];
+        }
+
+        // Next row of the image : width pixels from data[offset]
+        public void writeRow(byte[] data, int offset) throws IOException {
+            if (nextRow == height) {
+                throw new IOException("Too many rows for a " + width + "x" + height + " image");
+            }
+            System.arraycopy(data, offset, buffer, (nextRow - bufferFirstRow) * width, width);
+            nextRow++;
+
+            if (nextRow - blockFirstRow == blocks.rowsPerBlock || nextRow == height) {
+                blocks.submit(IndexedRaster.wrap(buffer, -bufferFirstRow * width, width, width, height), blockFirstRow, nextRow);
+
+                // new buffer starting with the context of the next block
+                int kept = Math.min(contextRows, nextRow - bufferFirstRow);
+                byte[] next = new byte[buffer.length];
+                System.arraycopy(buffer, (nextRow - kept - bufferFirstRow) * width, next, 0, kept * width);
+                buffer = next;
+                bufferFirstRow = nextRow - kept;
+                blockFirstRow = nextRow;
+            }
+        }
+
+        // End of the image, once all the rows are written
+        public void finish() throws IOException {
+            if (nextRow != height) {
+                throw new IOException("Missing rows: " + nextRow + " of " + height + " written");
+            }
+            blocks.finish();
+            writeChunk(out, "IEND", new byte[0], 0);
+            out.flush();
+        }
+
+        @Override
+        public void close() {
+            blocks.close();
+        }
+    }
+
+
+    // Compressed rows [firstRow, endRow[
+    private Block compressBlock(IndexedRaster pixels, int firstRow, int endRow, boolean last) {
+        int rowLength = pixels.getWidth() + 1;
+        byte[] filtered = new byte[(endRow - firstRow) * rowLength];
+        filterRows(pixels, firstRow, endRow, filtered, 0);
+
+        Adler32 adler = new Adler32();
+        adler.update(filtered, 0, filtered.length);
+
+        Deflater deflater = new Deflater(compressionLevel, true);
+        try {
+            if (firstRow > 0) {
+                // the previous rows as dictionary, so the block compresses as if it followed them
+                int dictionaryRows = Math.min(firstRow, (DICTIONARY_SIZE + rowLength - 1) / rowLength);
+                byte[] dictionary = new byte[dictionaryRows * rowLength];
+                filterRows(pixels, firstRow - dictionaryRows, firstRow, dictionary, 0);
+                int length = Math.min(DICTIONARY_SIZE, dictionary.length);
+                deflater.setDictionary(dictionary, dictionary.length - length, length);
+            }
+
+            deflater.setInput(filtered);
+            if (last) {
+                deflater.finish();
+            }
+
+            Block block = new Block();
+            block.data = new byte[Math.max(64, filtered.length / 4)];
+            block.adler = adler.getValue();
+            block.inputLength = filtered.length;
+
+            int flush = last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH;
+            while (true) {
+                if (block.length == block.data.length) {
+                    block.data = Arrays.copyOf(block.data, block.data.length * 2);
+                }
+                int space = block.data.length - block.length;
+                int count = deflater.deflate(block.data, block.length, space, flush);
+                block.length += count;
+
+                // the sync flush is complete once the output buffer isn't filled up
+                if (last ? deflater.finished() : count < space) {
+                    break;
+                }
+            }
+            return block;
+        } finally {
+            deflater.end();
+        }
+    }
+
+
+    // Filter rows [firstRow, endRow[ into dst : filter type byte then the filtered pixels, for each row
+    private void filterRows(IndexedRaster pixels, int firstRow, int endRow, byte[] dst, int offset) {
+        byte[] data = pixels.getData();
+        int width = pixels.getWidth();
+
+        for (int y = firstRow; y < endRow; y++, offset += width + 1) {
+            int row = pixels.getRowOffset(y);
+            int prior = y > 0 ? pixels.getRowOffset(y - 1) : -1;
+            int type = filter == FILTER_ADAPTIVE ? chooseFilter(data, row, prior, width) : FILTER_NONE;
+
+            dst[offset] = (byte) type;
+            int out = offset + 1;
+            switch (type) {
+                case 1: // Sub
+                    dst[out] = data[row];
+                    for (int x = 1; x < width; x++) {
+                        dst[out + x] = (byte) (data[row + x] - data[row + x - 1]);
+                    }
+                    break;
+                case 2: // Up
+                    for (int x = 0; x < width; x++) {
+                        dst[out + x] = (byte) (data[row + x] - data[prior + x]);
+                    }
+                    break;
+                default: // None
+                    System.arraycopy(data, row, dst, out, width);
+            }
+        }
+    }
+
+    // Cheapest filter of the row, estimated by the sum of the absolute (signed byte) values
+    private static int chooseFilter(byte[] data, int row, int prior, int width) {
+        long none = 0, sub = Math.abs((int) data[row]), up = 0;
+        for (int x = 0; x < width; x++) {
+            none += Math.abs((int) data[row + x]);
+            if (x > 0) {
+                sub += Math.abs((int) (byte) (data[row + x] - data[row + x - 1]));
+            }
+            if (prior >= 0) {
+                up += Math.abs((int) (byte) (data[row + x] - data[prior + x]));
+            }
+        }
+
+        if (prior >= 0 && up < none && up <= sub) {
+            return 2;
+        }
+        return sub < none ? 1 : 0;
+    }
+
+
+    private static int zlibFlags(int level) {
+        int flevel = level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+        int flags = flevel << 6;
+        return flags + (31 - ((0x78 << 8) + flags) % 31);
+    }
+
+    // adler32 of data1 + data2, from the adler32 of both parts (same as zlib's adler32_combine)
+    static long adler32Combine(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= (base << 1)) sum2 -= (base << 1);
+        if (sum2 >= base) sum2 -= base;
+        return (sum2 << 16) | sum1;
+    }
+
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+
+    // One compressed block of rows
+    private static final class Block {
+        byte[] data;
+        int length;
+        long adler;
+        int inputLength;
+    }
+
+    // Buffers the zlib stream and writes it as IDAT chunks
+    private static final class IdatOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte[] buffer = new byte[IDAT_SIZE];
+        private int count = 0;
+        private long adler = 1; // adler32 of the uncompressed data written so far
+
+        IdatOutputStream(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void write(Block block) throws IOException {
+            write(block.data, 0, block.length);
+            adler = adler32Combine(adler, block.adler, block.inputLength);
+        }
+
+        void writeInt(long value) throws IOException {
+            write((int) (value >>> 24));
+            write((int) (value >>> 16));
+            write((int) (value >>> 8));
+            write((int) value);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flushChunk();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    flushChunk();
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void flushChunk() throws IOException {
+            if (count > 0) {
+                writeChunk(out, "IDAT", buffer, count);
+                count = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flushChunk(); // the underlying stream stays open
+        }
+    }
+}
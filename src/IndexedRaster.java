@@ -0,0 +1,83 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+
+// Direct access to the pixels of an 8bpp single band image, through its backing byte array.
+// Pixel (x, y) is at data[offset + y * stride + x].
+public class IndexedRaster {
+
+    private final byte[] data;
+    private final int offset;
+    private final int stride;
+    private final int width;
+    private final int height;
+
+
+
+    private IndexedRaster(byte[] data, int offset, int stride, int width, int height) {
+        this.data = data;
+        this.offset = offset;
+        this.stride = stride;
+        this.width = width;
+        this.height = height;
+    }
+
+
+    // Returns null if the image pixels are not stored one byte per pixel (packed, multi band...)
+    public static IndexedRaster of(BufferedImage img) {
+        WritableRaster raster = img.getRaster();
+        SampleModel sm = raster.getSampleModel();
+
+        if (!(raster.getDataBuffer() instanceof DataBufferByte) || !(sm instanceof ComponentSampleModel)) {
+            return null;
+        }
+
+        ComponentSampleModel csm = (ComponentSampleModel) sm;
+        if (csm.getNumBands() != 1 || csm.getPixelStride() != 1) {
+            return null;
+        }
+
+        DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+        int bank = csm.getBankIndices()[0];
+        int offset = buffer.getOffsets()[bank] + csm.getOffset(
+            raster.getMinX() - raster.getSampleModelTranslateX(),
+            raster.getMinY() - raster.getSampleModelTranslateY());
+
+        return new IndexedRaster(buffer.getData(bank), offset, csm.getScanlineStride(), img.getWidth(), img.getHeight());
+    }
+
+
+    // View on some rows of an image kept in a buffer : the offset is negative when the
+    // buffer doesn't start with row 0 (only the rows held by the buffer may be accessed)
+    public static IndexedRaster wrap(byte[] data, int offset, int stride, int width, int height) {
+        return new IndexedRaster(data, offset, stride, width, height);
+    }
+
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    // Offset of the first pixel of a row
+    public int getRowOffset(int y) {
+        return offset + y * stride;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
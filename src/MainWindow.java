@@ -0,0 +1,17 @@
+// What ImagePanel needs from the window around it : view options, menus and status bar.
+// Implemented by PngPalettePriorityEditor, and by RenderBenchmark to drive the panel without a window.
+public interface MainWindow {
+
+    void updateStatusBar(String text);
+
+    // enable the menus once an image is loaded
+    void allowMenuChoice();
+
+    boolean getShowGrid();
+
+    boolean getShowPaletteIndex();
+
+    boolean getViewPaletteZero();
+
+    boolean getUseMappedMask();
+}
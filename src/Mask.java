@@ -1,39 +1,54 @@
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
+// Palette/priority mask of an image, one entry per 8x8 tile.
+// The attributes are kept packed in a TileStore (one byte per tile), this class is a view on it.
 public class Mask  implements Serializable {
-    private final int width;
-    private final int height;
-    private final List<Tile> tiles;
+
+    // Serialized form of the first versions (width, height, List<Tile>) : keep it so old .msk files still load
+    private static final long serialVersionUID = -5504416779351943491L;
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("width", int.class),
+        new ObjectStreamField("height", int.class),
+        new ObjectStreamField("tiles", List.class)
+    };
+
+    private int width;
+    private int height;
+    private TileStore store;
+    private File backingFile; // file mapped by the store, null for a mask in memory
 
 
 
     public Mask(int width, int height) {
         this.width = width;
         this.height = height;
-        tiles = new ArrayList<>();
-
-        // Initialize the mask with default tiles
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                tiles.add(new Tile(x, y, 0, 0)); // Default: palette 0, priority 0
-            }
-        }
+        store = new TileStore(width, height); // Default: palette 0, priority 0
     }
 
     public Mask(Mask mask) {
         this.width = mask.width;
         this.height = mask.height;
-        tiles = new ArrayList<>();
+        store = new TileStore(width, height);
+        store.copyFrom(mask.store);
+    }
 
-        // Initialize the mask with default tiles
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                Tile tile = mask.getTile(x, y);
-                tiles.add(new Tile(x, y, tile.getPalette(), tile.getPriority()));
-            }
-        }
+    public Mask(TileStore store) {
+        this(store, null);
+    }
+
+    public Mask(TileStore store, File backingFile) {
+        this.width = store.getWidth();
+        this.height = store.getHeight();
+        this.store = store;
+        this.backingFile = backingFile;
     }
 
     public int getWidth() {
@@ -44,41 +59,148 @@ public class Mask  implements Serializable {
         return height;
     }
 
+    public TileStore getTileStore() {
+        return store;
+    }
+
+    public boolean isMapped() {
+        return backingFile != null;
+    }
+
+    public File getBackingFile() {
+        return backingFile;
+    }
+
+    // Mapped mask : write the pending changes to the backing file
+    public void flush() {
+        store.flush();
+    }
+
+    // Returns a copy of the tile attributes : use setTileProperties() to modify them
     public Tile getTile(int x, int y) {
         if (x >= 0 && x < width && y >= 0 && y < height) {
-            return tiles.get(y * width + x);
+            int packed = store.get(y * width + x);
+            return new Tile(x, y, TileStore.unpackPalette(packed), TileStore.unpackPriority(packed));
         }
         return null;
     }
-    
 
-    public int getTilePalette(int x, int y) {
-        for (Tile tile : tiles) {
-            if (tile.getX() == x && tile.getY() == y) {
-                return tile.getPalette();
-            }
+    // Packed attributes of a tile (see TileStore), 0 if the tile doesn't exist
+    public int getPackedTile(int x, int y) {
+        if (x >= 0 && x < width && y >= 0 && y < height) {
+            return store.get(y * width + x);
         }
-        return 0; // Valeur par défaut si la TILE n'existe pas
+        return 0;
     }
-    
+
+    public int getTilePalette(int x, int y) {
+        return TileStore.unpackPalette(getPackedTile(x, y));
+    }
+
     public int getTilePriority(int x, int y) {
-        for (Tile tile : tiles) {
-            if (tile.getX() == x && tile.getY() == y) {
-                return tile.getPriority();
-            }
-        }
-        return 0; // Valeur par défaut si la TILE n'existe pas
+        return TileStore.unpackPriority(getPackedTile(x, y));
     }
 
     public List<Tile> getTiles() {
+        List<Tile> tiles = new ArrayList<>(width * height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                tiles.add(getTile(x, y));
+            }
+        }
         return tiles;
     }
+
     public void setTileProperties(int x, int y, int palette, int priority) {
-        Tile tile = getTile(x, y);
-        if (tile != null) {      
-            tile.setPalette(palette);
-            tile.setPriority(priority);
+        if (x >= 0 && x < width && y >= 0 && y < height) {
+            store.set(y * width + x, TileStore.pack(palette, priority));
+        }
+    }
+
+
+    // Bulk operations : each tile of the area becomes (tile & andMask) | orMask, on the packed
+    // values (see TileStore), in one pass over the store. If edit isn't null, the old values
+    // are recorded in it so the whole operation is a single undo step.
+
+    public void applyRect(Rectangle tiles, int andMask, int orMask, MaskEdit edit) {
+        Rectangle area = tiles.intersection(new Rectangle(0, 0, width, height));
+        if (area.isEmpty()) {
+            return;
+        }
+        for (int y = area.y; y < area.y + area.height; y++) {
+            int from = y * width + area.x;
+            if (edit != null) {
+                edit.recordRange(from, from + area.width);
+            }
+            store.apply(from, from + area.width, andMask, orMask);
+        }
+    }
+
+    public void applySelection(TileSelection selection, int andMask, int orMask, MaskEdit edit) {
+        if (selection.getWidth() != width || selection.getHeight() != height) {
+            throw new IllegalArgumentException("Selection and mask have different sizes");
+        }
+        long[] words = selection.words();
+        for (int w = 0; w < words.length; w++) {
+            long bits = words[w];
+            if (bits == -1L) { // 64 tiles in a row
+                int from = w << 6;
+                if (edit != null) {
+                    edit.recordRange(from, from + 64);
+                }
+                store.apply(from, from + 64, andMask, orMask);
+                continue;
+            }
+            while (bits != 0) {
+                int index = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (edit != null) {
+                    edit.recordRange(index, index + 1);
+                }
+                store.set(index, (store.get(index) & andMask) | orMask);
+            }
+        }
+    }
+
+    public void fillRect(Rectangle tiles, int palette, int priority, MaskEdit edit) {
+        applyRect(tiles, 0, TileStore.pack(palette, priority), edit);
+    }
+
+    public void fillSelection(TileSelection selection, int palette, int priority, MaskEdit edit) {
+        applySelection(selection, 0, TileStore.pack(palette, priority), edit);
+    }
+
+    // Change the palette of the selected tiles, keeping their priority
+    public void setPalette(TileSelection selection, int palette, MaskEdit edit) {
+        applySelection(selection, ~TileStore.PALETTE_BITS & 0xFF, TileStore.pack(palette, 0), edit);
+    }
+
+    // Change the priority of the selected tiles, keeping their palette
+    public void setPriority(TileSelection selection, int priority, MaskEdit edit) {
+        applySelection(selection, ~TileStore.PRIORITY_BITS & 0xFF, TileStore.pack(0, priority), edit);
+    }
+
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("width", width);
+        fields.put("height", height);
+        fields.put("tiles", getTiles());
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        width = fields.get("width", 0);
+        height = fields.get("height", 0);
+        store = new TileStore(width, height);
+
+        List<Tile> tiles = (List<Tile>) fields.get("tiles", null);
+        if (tiles != null) {
+            for (Tile tile : tiles) {
+                setTileProperties(tile.getX(), tile.getY(), tile.getPalette(), tile.getPriority());
+            }
         }
     }
- 
 }
@@ -0,0 +1,160 @@
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.BitSet;
+
+// One undoable change of the mask, stored as a delta : the indices of the modified tiles
+// with their packed values before and after the change (see TileStore for the packing).
+//
+// Usage : record the tiles about to change, modify the mask, then finish() the edit
+// to capture the new values and drop the tiles that didn't change.
+public class MaskEdit {
+
+    private final Mask mask;
+
+    private int[] indices = new int[16];
+    private byte[] oldValues = new byte[16];
+    private byte[] newValues = null;
+    private int count = 0;
+    private Rectangle bounds = null; // tiles changed, in tile coordinates
+
+
+
+    public MaskEdit(Mask mask) {
+        this.mask = mask;
+    }
+
+
+    // Save the current value of a tile before it's modified
+    public void recordTile(int x, int y) {
+        if (x < 0 || x >= mask.getWidth() || y < 0 || y >= mask.getHeight()) {
+            return;
+        }
+        if (count == indices.length) {
+            indices = Arrays.copyOf(indices, count * 2);
+            oldValues = Arrays.copyOf(oldValues, count * 2);
+        }
+        int index = y * mask.getWidth() + x;
+        indices[count] = index;
+        oldValues[count] = (byte) mask.getTileStore().get(index);
+        count++;
+    }
+
+    // Save the current values of the tiles [from, to[ (indices in the tile store)
+    void recordRange(int from, int to) {
+        int length = to - from;
+        if (count + length > indices.length) {
+            int capacity = Math.max(count + length, indices.length * 2);
+            indices = Arrays.copyOf(indices, capacity);
+            oldValues = Arrays.copyOf(oldValues, capacity);
+        }
+        for (int i = 0; i < length; i++) {
+            indices[count + i] = from + i;
+        }
+        mask.getTileStore().get(from, oldValues, count, length);
+        count += length;
+    }
+
+    public void recordRect(Rectangle tiles) {
+        Rectangle area = tiles.intersection(new Rectangle(0, 0, mask.getWidth(), mask.getHeight()));
+        for (int y = area.y; y < area.y + area.height; y++) {
+            for (int x = area.x; x < area.x + area.width; x++) {
+                recordTile(x, y);
+            }
+        }
+    }
+
+
+    // Capture the new values, keeping only the tiles really modified (returns false if none)
+    public boolean finish() {
+        TileStore store = mask.getTileStore();
+        int width = mask.getWidth();
+        int kept = 0;
+        byte[] values = new byte[count];
+        boolean[] first = firstRecords();
+
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
+        for (int i = 0; i < count; i++) {
+            byte value = (byte) store.get(indices[i]);
+            if (!first[i] || value == oldValues[i]) {
+                continue;
+            }
+            indices[kept] = indices[i];
+            oldValues[kept] = oldValues[i];
+            values[kept] = value;
+            kept++;
+
+            int x = indices[i] % width;
+            int y = indices[i] / width;
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+        }
+
+        // trim to size : the history keeps many edits
+        count = kept;
+        indices = Arrays.copyOf(indices, kept);
+        oldValues = Arrays.copyOf(oldValues, kept);
+        newValues = Arrays.copyOf(values, kept);
+        bounds = kept > 0 ? new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1) : new Rectangle();
+        return kept > 0;
+    }
+
+
+    // Flags the first record of each tile, the only one holding its value from before the edit.
+    // Later records are dropped : a tile changed then set back would be undone to its middle value
+    private boolean[] firstRecords() {
+        boolean[] first = new boolean[count];
+        if (count == 0) {
+            return first;
+        }
+        int min = Integer.MAX_VALUE, max = -1;
+        for (int i = 0; i < count; i++) {
+            min = Math.min(min, indices[i]);
+            max = Math.max(max, indices[i]);
+        }
+        BitSet seen = new BitSet(max - min + 1);
+        for (int i = 0; i < count; i++) {
+            if (!seen.get(indices[i] - min)) {
+                seen.set(indices[i] - min);
+                first[i] = true;
+            }
+        }
+        return first;
+    }
+
+
+    // Restore the old values
+    public void undo() {
+        TileStore store = mask.getTileStore();
+        for (int i = count - 1; i >= 0; i--) {
+            store.set(indices[i], oldValues[i] & 0xFF);
+        }
+    }
+
+    public void redo() {
+        TileStore store = mask.getTileStore();
+        for (int i = 0; i < count; i++) {
+            store.set(indices[i], newValues[i] & 0xFF);
+        }
+    }
+
+
+    public Mask getMask() {
+        return mask;
+    }
+
+    public int getTileCount() {
+        return count;
+    }
+
+    // Modified tiles area, in tile coordinates (valid after finish)
+    public Rectangle getBounds() {
+        return bounds;
+    }
+
+    // Approximate heap size of the edit, in bytes
+    public long getMemorySize() {
+        return 64 + (long) indices.length * 4 + oldValues.length + (newValues != null ? newValues.length : 0);
+    }
+}
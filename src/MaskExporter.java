@@ -0,0 +1,146 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Fast export engine : applies the mask directly on the backing byte arrays of the images.
+//
+// Each tile row of the mask is read once, then every pixel row of the tile row is processed
+// 8 pixels at a time with the packed tile byte as OR-mask :
+//    out = (in & 0x0F) | tileBits
+// Pixels not covered by the mask are left untouched (0 in a freshly allocated image),
+// which gives exactly the same result as ImageHandler.applyMaskReference().
+// When the target is not a fresh image (reused row buffer...), clearUncovered() zeroes them.
+public class MaskExporter {
+
+    private final IndexedRaster source;
+    private final IndexedRaster target;
+    private final TileStore tiles;
+
+    private final int coveredWidth;
+    private final int coveredHeight;
+    private final int tileRowCount;
+
+
+
+    private MaskExporter(IndexedRaster source, IndexedRaster target, Mask mask) {
+        this.source = source;
+        this.target = target;
+        this.tiles = mask.getTileStore();
+
+        int tileSize = ImageHandler.TILE_SIZE;
+        coveredWidth = Math.min(mask.getWidth() * tileSize, source.getWidth());
+        coveredHeight = Math.min(mask.getHeight() * tileSize, source.getHeight());
+        tileRowCount = (coveredHeight + tileSize - 1) / tileSize;
+    }
+
+
+    // Returns null if source or target are not byte backed 8bpp images (use the reference export then)
+    public static MaskExporter create(IndexedRaster source, IndexedRaster target, Mask mask) {
+        if (source == null || target == null
+            || source.getWidth() != target.getWidth() || source.getHeight() != target.getHeight()) {
+            return null;
+        }
+        return new MaskExporter(source, target, mask);
+    }
+
+
+    public int getTileRowCount() {
+        return tileRowCount;
+    }
+
+    public void exportAll() {
+        exportTileRows(0, tileRowCount);
+    }
+
+    // Split the image in bands of tile rows exported by the pool threads.
+    // Each band writes its own rows of the target, so the output doesn't depend on the scheduling.
+    public void exportParallel(ForkJoinPool pool, int bandTileRows) {
+        pool.invoke(new BandTask(this, 0, tileRowCount, Math.max(1, bandTileRows)));
+    }
+
+    // Export tile rows [firstTileRow, endTileRow[ : different ranges can be exported concurrently
+    public void exportTileRows(int firstTileRow, int endTileRow) {
+        int tileSize = ImageHandler.TILE_SIZE;
+        int fullTiles = coveredWidth / tileSize;
+        int lastTileWidth = coveredWidth % tileSize;
+        int tilesPerRow = fullTiles + (lastTileWidth > 0 ? 1 : 0);
+
+        byte[] src = source.getData();
+        byte[] dst = target.getData();
+        byte[] tileRow = new byte[tilesPerRow];
+
+        for (int tileY = firstTileRow; tileY < endTileRow; tileY++) {
+            tiles.get(tileY * tiles.getWidth(), tileRow, 0, tilesPerRow);
+
+            int endY = Math.min((tileY + 1) * tileSize, coveredHeight);
+            for (int y = tileY * tileSize; y < endY; y++) {
+                int s = source.getRowOffset(y);
+                int d = target.getRowOffset(y);
+
+                for (int tileX = 0; tileX < fullTiles; tileX++) {
+                    int tileBits = tileRow[tileX];
+                    dst[d]     = (byte) ((src[s]     & 0x0F) | tileBits);
+                    dst[d + 1] = (byte) ((src[s + 1] & 0x0F) | tileBits);
+                    dst[d + 2] = (byte) ((src[s + 2] & 0x0F) | tileBits);
+                    dst[d + 3] = (byte) ((src[s + 3] & 0x0F) | tileBits);
+                    dst[d + 4] = (byte) ((src[s + 4] & 0x0F) | tileBits);
+                    dst[d + 5] = (byte) ((src[s + 5] & 0x0F) | tileBits);
+                    dst[d + 6] = (byte) ((src[s + 6] & 0x0F) | tileBits);
+                    dst[d + 7] = (byte) ((src[s + 7] & 0x0F) | tileBits);
+                    s += tileSize;
+                    d += tileSize;
+                }
+
+                // mask wider than the image : last tile is cut
+                if (lastTileWidth > 0) {
+                    int tileBits = tileRow[fullTiles];
+                    for (int x = 0; x < lastTileWidth; x++) {
+                        dst[d + x] = (byte) ((src[s + x] & 0x0F) | tileBits);
+                    }
+                }
+            }
+        }
+    }
+
+
+    // Zero the pixels of rows [firstRow, endRow[ not covered by the mask
+    public void clearUncovered(int firstRow, int endRow) {
+        byte[] dst = target.getData();
+        for (int y = firstRow; y < endRow; y++) {
+            int d = target.getRowOffset(y);
+            int from = y < coveredHeight ? coveredWidth : 0;
+            Arrays.fill(dst, d + from, d + target.getWidth(), (byte) 0);
+        }
+    }
+
+
+    private static class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final MaskExporter exporter;
+        private final int firstTileRow;
+        private final int endTileRow;
+        private final int bandTileRows;
+
+        BandTask(MaskExporter exporter, int firstTileRow, int endTileRow, int bandTileRows) {
+            this.exporter = exporter;
+            this.firstTileRow = firstTileRow;
+            this.endTileRow = endTileRow;
+            this.bandTileRows = bandTileRows;
+        }
+
+        @Override
+        protected void compute() {
+            int rows = endTileRow - firstTileRow;
+            if (rows <= bandTileRows) {
+                exporter.exportTileRows(firstTileRow, endTileRow);
+                return;
+            }
+
+            // split on a band boundary, so the bands are the same whatever the pool size
+            int middle = firstTileRow + ((rows / bandTileRows + 1) / 2) * bandTileRows;
+            invokeAll(new BandTask(exporter, firstTileRow, middle, bandTileRows),
+                      new BandTask(exporter, middle, endTileRow, bandTileRows));
+        }
+    }
+}
@@ -0,0 +1,362 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// Reading / writing of the .msk files.
+//
+// Binary format (big endian) :
+//    magic    4 bytes  'P' 'M' 'S' 'K'
+//    version  1 byte
+//    encoding 1 byte   (ENCODING_xxx)
+//    reserved 2 bytes
+//    width    4 bytes  (in tiles)
+//    height   4 bytes  (in tiles)
+//    tiles    depends on the encoding :
+//       RAW         : width * height bytes, row by row, packed as in TileStore
+//       RLE         : runs of identical tiles, each one stored as [length (varint)][packed tile byte]
+//       RLE_DEFLATE : the RLE data, compressed with deflate (zlib)
+//
+// The first versions of the tool saved the Mask with Java serialization :
+// these files are still read (see readLegacy), and saved back in the binary format.
+public class MaskFile {
+
+    public static final int MAGIC = 0x504D534B; // "PMSK"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+
+    public static final int ENCODING_RAW = 0;
+    public static final int ENCODING_RLE = 1;
+    public static final int ENCODING_RLE_DEFLATE = 2;
+
+    public static final int DEFAULT_ENCODING = ENCODING_RLE;
+
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
+    private static final int SERIALIZATION_MAGIC = 0xACED; // java.io.ObjectStreamConstants.STREAM_MAGIC
+
+
+
+    public static void write(Mask mask, File file) throws IOException {
+        if (mask.isMapped()) {
+            writeMapped(mask, file);
+        } else {
+            write(mask, file, DEFAULT_ENCODING);
+        }
+    }
+
+    public static void write(Mask mask, File file, int encoding) throws IOException {
+        if (encoding != ENCODING_RAW && encoding != ENCODING_RLE && encoding != ENCODING_RLE_DEFLATE) {
+            throw new IllegalArgumentException("Unknown mask encoding " + encoding);
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            writeFully(channel, createHeader(mask.getWidth(), mask.getHeight(), encoding));
+
+            switch (encoding) {
+                case ENCODING_RAW:
+                    writeFully(channel, mask.getTileStore().duplicateBuffer());
+                    break;
+
+                case ENCODING_RLE:
+                    try (OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), STREAM_BUFFER_SIZE)) {
+                        writeRuns(mask.getTileStore(), out);
+                    }
+                    break;
+
+                case ENCODING_RLE_DEFLATE:
+                    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+                    try (OutputStream out = new DeflaterOutputStream(Channels.newOutputStream(channel), deflater, STREAM_BUFFER_SIZE)) {
+                        writeRuns(mask.getTileStore(), out);
+                    } finally {
+                        deflater.end();
+                    }
+                    break;
+            }
+        }
+    }
+
+
+    // Encoding name as used on the command line (raw, rle, deflate), -1 if unknown
+    public static int parseEncoding(String name) {
+        switch (name.toLowerCase()) {
+            case "raw":     return ENCODING_RAW;
+            case "rle":     return ENCODING_RLE;
+            case "deflate": return ENCODING_RLE_DEFLATE;
+            default:        return -1;
+        }
+    }
+
+
+    // Reads both binary and legacy (serialized) mask files
+    public static Mask read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header);
+            header.flip();
+
+            if (header.remaining() >= 2 && (header.getShort(0) & 0xFFFF) == SERIALIZATION_MAGIC) {
+                channel.position(0);
+                return readLegacy(Channels.newInputStream(channel));
+            }
+
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                throw new IOException("Not a mask file: " + file);
+            }
+
+            int version = header.get() & 0xFF;
+            int encoding = header.get() & 0xFF;
+            header.getShort(); // reserved
+            int width = header.getInt();
+            int height = header.getInt();
+
+            if (version > VERSION) {
+                throw new IOException("Mask file version " + version + " is not supported: " + file);
+            }
+            checkSize(width, height, file);
+
+            TileStore store = new TileStore(width, height);
+
+            switch (encoding) {
+                case ENCODING_RAW:
+                    ByteBuffer tiles = store.duplicateBuffer();
+                    readFully(channel, tiles);
+                    if (tiles.hasRemaining()) {
+                        throw new IOException("Truncated mask file: " + file);
+                    }
+                    break;
+
+                case ENCODING_RLE:
+                    readRuns(new BufferedInputStream(Channels.newInputStream(channel), STREAM_BUFFER_SIZE), store, file);
+                    break;
+
+                case ENCODING_RLE_DEFLATE:
+                    Inflater inflater = new Inflater();
+                    try {
+                        InputStream in = new BufferedInputStream(new InflaterInputStream(Channels.newInputStream(channel), inflater), STREAM_BUFFER_SIZE);
+                        readRuns(in, store, file);
+                        // read up to the end of the deflate stream, so its checksum is checked too
+                        if (in.read() >= 0) {
+                            throw new IOException("Corrupted mask file: " + file);
+                        }
+                    } finally {
+                        inflater.end();
+                    }
+                    break;
+
+                default:
+                    throw new IOException("Unknown mask encoding " + encoding + ": " + file);
+            }
+            return new Mask(store);
+        }
+    }
+
+
+    private static void writeRuns(TileStore store, OutputStream out) throws IOException {
+        int size = store.size();
+        int i = 0;
+        while (i < size) {
+            int value = store.get(i);
+            int end = i + 1;
+            while (end < size && store.get(end) == value) {
+                end++;
+            }
+
+            writeVarInt(out, end - i);
+            out.write(value);
+            i = end;
+        }
+    }
+
+    // Decode the runs straight into the tiles of the store
+    private static void readRuns(InputStream in, TileStore store, File file) throws IOException {
+        int size = store.size();
+        int i = 0;
+        while (i < size) {
+            int length = readVarInt(in, file);
+            int value = in.read();
+            if (value < 0) {
+                throw new IOException("Truncated mask file: " + file);
+            }
+            if (length <= 0 || length > size - i) {
+                throw new IOException("Corrupted mask file: " + file);
+            }
+
+            store.fill(i, i + length, value);
+            i += length;
+        }
+    }
+
+    // Unsigned LEB128 : 7 bits per byte, high bit set when more bytes follow
+    private static void writeVarInt(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(InputStream in, File file) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Truncated mask file: " + file);
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupted mask file: " + file);
+    }
+
+
+    // MEMORY-MAPPED MASKS
+    //
+    // The tiles of a RAW mask file are mapped in memory (FileChannel.map) : edits go straight
+    // to the file pages, the heap use doesn't depend on the mask size and saving is a flush.
+
+
+    // Create (or overwrite) a RAW mask file of the given size, and map its tiles
+    public static Mask createMapped(File file, int width, int height) throws IOException {
+        checkSize(width, height, file);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            writeFully(channel, createHeader(width, height, ENCODING_RAW));
+            MappedByteBuffer tiles = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE, (long) width * height); // extends the file with 0 = default tiles
+            return new Mask(new TileStore(width, height, tiles), file);
+        }
+    }
+
+    // Mapped mask backed by a temporary file, deleted when the application exits
+    public static Mask createTempMapped(int width, int height) throws IOException {
+        File file = File.createTempFile("pppe4sgdk-", ".msk");
+        file.deleteOnExit();
+        return createMapped(file, width, height);
+    }
+
+    // Map the tiles of an existing mask file : RAW files are mapped directly (edits are written to the file),
+    // other encodings are decoded into a temporary mapped file if writable. Read only masks of the other
+    // encodings are decoded in memory, as read() does : a batch doesn't leave a temporary file per job.
+    // Read only masks must not be modified.
+    public static Mask readMapped(File file, boolean writable) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                writable ? new StandardOpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE }
+                         : new StandardOpenOption[] { StandardOpenOption.READ })) {
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header);
+            header.flip();
+
+            if (header.remaining() == HEADER_SIZE && header.getInt(0) == MAGIC
+                && (header.get(4) & 0xFF) <= VERSION && header.get(5) == ENCODING_RAW) {
+
+                int width = header.getInt(8);
+                int height = header.getInt(12);
+                checkSize(width, height, file);
+                if (channel.size() < HEADER_SIZE + (long) width * height) {
+                    throw new IOException("Truncated mask file: " + file);
+                }
+
+                MappedByteBuffer tiles = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                                                     HEADER_SIZE, (long) width * height);
+                return new Mask(new TileStore(width, height, tiles), file);
+            }
+        }
+
+        Mask mask = read(file);
+        if (!writable) {
+            return mask;
+        }
+        Mask mapped = createTempMapped(mask.getWidth(), mask.getHeight());
+        mapped.getTileStore().copyFrom(mask.getTileStore());
+        return mapped;
+    }
+
+    // Saving a mapped mask : flush the mapped pages, then copy the backing file if needed
+    private static void writeMapped(Mask mask, File file) throws IOException {
+        mask.flush();
+
+        if (file.exists() && Files.isSameFile(mask.getBackingFile().toPath(), file.toPath())) {
+            return;
+        }
+        Files.copy(mask.getBackingFile().toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+
+    // True if the file was saved with Java serialization by the first versions of the tool
+    public static boolean isLegacy(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(2);
+            readFully(channel, magic);
+            return magic.position() == 2 && (magic.getShort(0) & 0xFFFF) == SERIALIZATION_MAGIC;
+        }
+    }
+
+
+    // Legacy format : Mask serialized with ObjectOutputStream (see Mask.readObject)
+    private static Mask readLegacy(InputStream in) throws IOException {
+        try (ObjectInputStream ois = new ObjectInputStream(in)) {
+            Object object = ois.readObject();
+            if (!(object instanceof Mask)) {
+                throw new IOException("Not a mask file");
+            }
+            return (Mask) object;
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Not a mask file", e);
+        }
+    }
+
+
+    static ByteBuffer createHeader(int width, int height, int encoding) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.put((byte) VERSION);
+        header.put((byte) encoding);
+        header.putShort((short) 0);
+        header.putInt(width);
+        header.putInt(height);
+        header.flip();
+        return header;
+    }
+
+    static void checkSize(int width, int height, File file) throws IOException {
+        if (width < 0 || height < 0 || (long) width * height > Integer.MAX_VALUE) {
+            throw new IOException("Invalid mask size " + width + "x" + height + ": " + file);
+        }
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // Read until the buffer is full or the end of file is reached
+    static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+
+// Tile overlay of ImagePanel at the smallest zoom levels, where tiles are too small for their
+// borders and labels : the mask is kept as an indexed image of one pixel per tile, whose value is
+// the tile state (palette, priority, selected) and whose colors are those of the states.
+// Painting is a single drawImage scaled to the tile size (nearest neighbour), and a mask change
+// only rewrites the bytes of the changed tiles. New colors only replace the color model.
+public class MaskImageOverlay {
+
+    private static final int STATE_COUNT = 16; // see OverlayRasterizer.tileState
+
+    private BufferedImage image = null;
+    private WritableRaster raster = null;
+    private byte[] pixels;
+    private int width;  // in tiles
+    private int height;
+    private IndexColorModel colorModel = createColorModel(new int[STATE_COUNT]);
+
+
+
+    // Colors of the tile states : a tile is its palette fill over its high priority and selection
+    // colors, as the border pixels of the tiles drawn by OverlayRasterizer (without the grid)
+    public void setColors(Color selectedColor, Color highPriorityColor, Color[] paletteColors, boolean showPaletteZero) {
+        int selected = OverlayRasterizer.premultiply(selectedColor);
+        int highPriority = OverlayRasterizer.premultiply(highPriorityColor);
+
+        int[] colors = new int[STATE_COUNT];
+        for (int state = 0; state < STATE_COUNT; state++) {
+            int palette = state & 0x03;
+            int paletteFill = palette > 0 || showPaletteZero ? OverlayRasterizer.premultiply(paletteColors[palette]) : 0;
+            int priorityLine = (state & 0x04) != 0 ? highPriority : 0;
+            int selectedFill = (state & 0x08) != 0 ? selected : 0;
+            colors[state] = unpremultiply(OverlayRasterizer.over(paletteFill, OverlayRasterizer.over(priorityLine, selectedFill)));
+        }
+        colorModel = createColorModel(colors);
+        if (raster != null) {
+            image = new BufferedImage(colorModel, raster, false, null);
+        }
+    }
+
+
+    // Write the state of tiles (mask coordinates) in the image. The image is created again,
+    // with all the tiles, if the mask size changed.
+    public void update(Rectangle tiles, Mask mask, TileSelection selection) {
+        if (raster == null || width != mask.getWidth() || height != mask.getHeight()) {
+            width = mask.getWidth();
+            height = mask.getHeight();
+            raster = colorModel.createCompatibleWritableRaster(Math.max(1, width), Math.max(1, height));
+            pixels = ((DataBufferByte) raster.getDataBuffer()).getData();
+            image = new BufferedImage(colorModel, raster, false, null);
+            tiles = new Rectangle(0, 0, width, height);
+        }
+
+        Rectangle area = tiles.intersection(new Rectangle(0, 0, width, height));
+        for (int y = area.y; y < area.y + area.height; y++) {
+            int offset = y * width;
+            for (int x = area.x; x < area.x + area.width; x++) {
+                pixels[offset + x] = (byte) OverlayRasterizer.tileState(mask, selection, x, y);
+            }
+        }
+    }
+
+
+    // Draw the tiles intersecting the clip, tileSize pixels per tile, tile (0, 0) being at (0, 0)
+    public void draw(Graphics g, int tileSize) {
+        if (image == null) {
+            return;
+        }
+        Rectangle area = new Rectangle(0, 0, width * tileSize, height * tileSize);
+        Rectangle clip = g.getClipBounds();
+        if (clip != null) {
+            area = area.intersection(clip);
+        }
+        if (area.isEmpty()) {
+            return;
+        }
+
+        int firstX = area.x / tileSize;
+        int firstY = area.y / tileSize;
+        int endX = (area.x + area.width + tileSize - 1) / tileSize;
+        int endY = (area.y + area.height + tileSize - 1) / tileSize;
+
+        Graphics2D g2d = (Graphics2D) g.create();
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        g2d.drawImage(image, firstX * tileSize, firstY * tileSize, endX * tileSize, endY * tileSize,
+                      firstX, firstY, endX, endY, null);
+        g2d.dispose();
+    }
+
+
+    private static IndexColorModel createColorModel(int[] colors) {
+        return new IndexColorModel(8, STATE_COUNT, colors, 0, true, -1, DataBuffer.TYPE_BYTE);
+    }
+
+    private static int unpremultiply(int argb) {
+        int alpha = argb >>> 24;
+        if (alpha == 0) {
+            return 0;
+        }
+        int red = (((argb >> 16) & 0xFF) * 255 + alpha / 2) / alpha;
+        int green = (((argb >> 8) & 0xFF) * 255 + alpha / 2) / alpha;
+        int blue = ((argb & 0xFF) * 255 + alpha / 2) / alpha;
+        return (alpha << 24) | (red << 16) | (green << 8) | blue;
+    }
+}
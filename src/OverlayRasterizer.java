@@ -0,0 +1,300 @@
+import java.awt.Color;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Tile overlay of ImagePanel, written pixel by pixel in an int[] backed ARGB (premultiplied) image.
+//
+// A tile is drawn as the grid border, the selection fill, the high priority border and the palette
+// fill, blended over each other. Its right and bottom borders go 1 pixel over the next tiles,
+// whose own drawing is blended over them. The blended colors are computed once for every tile
+// state (palette, priority, selected) and pair of states, so each pixel row of a tile is a LUT
+// read for its left border pixel and an Arrays.fill for the rest.
+// The result is the same as the Graphics2D drawing (drawRect / fillRect in SrcOver), tile after tile.
+// Palette labels are blended over the tiles afterwards, from the glyph pixels of PaletteLabelAtlas.
+public class OverlayRasterizer {
+
+    private static final int NO_TILE = 16;     // state of the tiles outside the mask
+    private static final int STATE_COUNT = 17;
+    private static final int PARALLEL_MIN_PIXELS = 256 * 1024; // smaller areas are drawn by the caller thread
+    private static final int BAND_ROWS = 64;
+
+    private BufferedImage image = null;
+    private int[] pixels;
+    private int width;
+    private int height;
+    private int tileSize = 1;
+
+    // blended colors (ARGB premultiplied) by tile state
+    private final int[] inside = new int[STATE_COUNT];        // pixels inside the tile
+    private final int[] border = new int[STATE_COUNT];        // its own top / left border pixels
+    private final int[] borderOver = new int[STATE_COUNT];    // its right / bottom borders, drawn over the next tiles
+    private final int[][] edge = new int[STATE_COUNT][STATE_COUNT]; // [previous tile][tile] : border pixel of tile
+
+
+
+    // Image of width x height pixels (content lost if the size changes), tiles of tileSize pixels
+    public BufferedImage resize(int width, int height, int tileSize) {
+        if (image == null || this.width != width || this.height != height) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+            pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            this.width = width;
+            this.height = height;
+        }
+        this.tileSize = Math.max(1, tileSize);
+        return image;
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+
+    // Compute the blended colors of all the tile states
+    public void setColors(Color gridColor, Color selectedColor, Color highPriorityColor, Color[] paletteColors,
+                          boolean showGrid, boolean showPaletteZero) {
+        int grid = showGrid ? premultiply(gridColor) : 0;
+        int selected = premultiply(selectedColor);
+        int highPriority = premultiply(highPriorityColor);
+
+        for (int state = 0; state < NO_TILE; state++) {
+            int palette = state & 0x03;
+            boolean isHighPriority = (state & 0x04) != 0;
+            boolean isSelected = (state & 0x08) != 0;
+            int paletteFill = palette > 0 || showPaletteZero ? premultiply(paletteColors[palette]) : 0;
+            int selectedFill = isSelected ? selected : 0;
+            int priorityLine = isHighPriority ? highPriority : 0;
+
+            // same order as the Graphics2D drawing
+            inside[state] = over(paletteFill, selectedFill);
+            border[state] = over(paletteFill, over(priorityLine, over(selectedFill, grid)));
+            borderOver[state] = over(priorityLine, grid);
+        }
+        inside[NO_TILE] = border[NO_TILE] = borderOver[NO_TILE] = 0;
+
+        for (int previous = 0; previous < STATE_COUNT; previous++) {
+            for (int state = 0; state < STATE_COUNT; state++) {
+                edge[previous][state] = over(border[state], borderOver[previous]);
+            }
+        }
+    }
+
+
+    // Tile state : palette (bits 0-1), priority (bit 2), selected (bit 3)
+    public static int tileState(Mask mask, TileSelection selection, int x, int y) {
+        if (x < 0 || y < 0 || x >= mask.getWidth() || y >= mask.getHeight()) {
+            return NO_TILE;
+        }
+        int packed = mask.getPackedTile(x, y);
+        return TileStore.unpackPalette(packed) | (TileStore.unpackPriority(packed) << 2) | (selection.contains(x, y) ? 0x08 : 0);
+    }
+
+
+    // Draw tiles (mask coordinates) with their last border line, origin being the tile at the
+    // top-left corner of the image. Pixels outside the image are skipped.
+    public void draw(Rectangle tiles, Point origin, Mask mask, TileSelection selection) {
+        int left = (tiles.x - origin.x) * tileSize;
+        int top = (tiles.y - origin.y) * tileSize;
+        Rectangle area = new Rectangle(left, top, tiles.width * tileSize + 1, tiles.height * tileSize + 1)
+            .intersection(new Rectangle(0, 0, width, height));
+        if (area.isEmpty()) {
+            return;
+        }
+
+        // states of the tiles of the area, and of the row / column before it
+        int firstX = origin.x + area.x / tileSize - 1;
+        int firstY = origin.y + area.y / tileSize - 1;
+        int columns = (area.x + area.width - 1) / tileSize - area.x / tileSize + 2;
+        int rows = (area.y + area.height - 1) / tileSize - area.y / tileSize + 2;
+        byte[] states = new byte[columns * rows];
+        for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < columns; x++) {
+                states[y * columns + x] = (byte) tileState(mask, selection, firstX + x, firstY + y);
+            }
+        }
+
+        Band band = new Band(area, area.y, area.y + area.height, states, columns);
+        if ((long) area.width * area.height >= PARALLEL_MIN_PIXELS && Runtime.getRuntime().availableProcessors() > 1) {
+            ForkJoinPool.commonPool().invoke(band);
+        } else {
+            band.drawRows();
+        }
+    }
+
+    // Blend the palette labels of tiles (mask coordinates) over the overlay, in the pixels of clip only.
+    // Labels may overflow their tile : the caller passes the tiles around the clip too.
+    public void drawLabels(Rectangle tiles, Point origin, Rectangle clip, Mask mask, PaletteLabelAtlas labels,
+                           boolean showPaletteZero) {
+        Rectangle area = clip.intersection(new Rectangle(0, 0, width, height));
+        if (area.isEmpty() || !labels.isVisible()) {
+            return;
+        }
+        int endX = area.x + area.width;
+        int endY = area.y + area.height;
+        int minX = labels.getMinX(), maxX = labels.getMaxX();
+        int minY = labels.getMinY(), maxY = labels.getMaxY();
+
+        for (int y = tiles.y; y < tiles.y + tiles.height; y++) {
+            int top = (y - origin.y) * tileSize;
+            for (int x = tiles.x; x < tiles.x + tiles.width; x++) {
+                int palette = mask.getTilePalette(x, y);
+                if (palette == 0 && !showPaletteZero) {
+                    continue;
+                }
+                int left = (x - origin.x) * tileSize;
+                int[] pixelX = labels.getPixelX(palette);
+                int[] pixelY = labels.getPixelY(palette);
+                int[] pixelColor = labels.getPixelColor(palette);
+
+                if (left + minX >= area.x && left + maxX < endX && top + minY >= area.y && top + maxY < endY) {
+                    // whole label inside the area
+                    int base = top * width + left;
+                    for (int i = 0; i < pixelColor.length; i++) {
+                        int offset = base + pixelY[i] * width + pixelX[i];
+                        pixels[offset] = over(pixelColor[i], pixels[offset]);
+                    }
+                    continue;
+                }
+                for (int i = 0; i < pixelColor.length; i++) {
+                    int px = left + pixelX[i];
+                    int py = top + pixelY[i];
+                    if (px >= area.x && px < endX && py >= area.y && py < endY) {
+                        int offset = py * width + px;
+                        pixels[offset] = over(pixelColor[i], pixels[offset]);
+                    }
+                }
+            }
+        }
+    }
+
+    // Move the content by (dx, dy) pixels, as Graphics.copyArea on the whole image
+    public void scroll(int dx, int dy) {
+        if (Math.abs(dx) >= width || Math.abs(dy) >= height) {
+            return;
+        }
+        int rowLength = width - Math.abs(dx);
+        int fromX = Math.max(0, -dx);
+        int toX = Math.max(0, dx);
+
+        if (dy > 0) {
+            for (int y = height - 1; y >= dy; y--) {
+                System.arraycopy(pixels, (y - dy) * width + fromX, pixels, y * width + toX, rowLength);
+            }
+        } else {
+            for (int y = 0; y < height + dy; y++) {
+                System.arraycopy(pixels, (y - dy) * width + fromX, pixels, y * width + toX, rowLength);
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(pixels, 0);
+    }
+
+
+    // Pixel rows [firstRow, endRow[ of an area, split in bands drawn by the pool threads
+    private class Band extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Rectangle area;
+        private final int firstRow;
+        private final int endRow;
+        private final byte[] states;
+        private final int columns;
+
+        Band(Rectangle area, int firstRow, int endRow, byte[] states, int columns) {
+            this.area = area;
+            this.firstRow = firstRow;
+            this.endRow = endRow;
+            this.states = states;
+            this.columns = columns;
+        }
+
+        @Override
+        protected void compute() {
+            if (endRow - firstRow <= BAND_ROWS) {
+                drawRows();
+                return;
+            }
+            int middle = firstRow + (endRow - firstRow) / 2;
+            invokeAll(new Band(area, firstRow, middle, states, columns), new Band(area, middle, endRow, states, columns));
+        }
+
+        void drawRows() {
+            int firstTileX = area.x / tileSize;
+            int firstTileY = area.y / tileSize;
+            int end = area.x + area.width;
+
+            for (int y = firstRow; y < endRow; y++) {
+                int tileY = y / tileSize;
+                boolean topBorder = y % tileSize == 0;
+                int row = (tileY - firstTileY + 1) * columns;
+                int rowAbove = row - columns;
+                int offset = y * width;
+
+                int x = area.x;
+                while (x < end) {
+                    int tileX = x / tileSize;
+                    int column = tileX - firstTileX + 1;
+                    int state = states[row + column];
+                    int tileEnd = Math.min(end, (tileX + 1) * tileSize);
+
+                    if (x == tileX * tileSize) {
+                        // left border : over the right border of the previous tile
+                        int previous = states[row + column - 1];
+                        if (topBorder) {
+                            // corner : borders of the 3 tiles above and before, in drawing order
+                            int color = over(borderOver[states[rowAbove + column]], borderOver[states[rowAbove + column - 1]]);
+                            color = over(borderOver[previous], color);
+                            pixels[offset + x] = over(border[state], color);
+                        } else {
+                            pixels[offset + x] = edge[previous][state];
+                        }
+                        x++;
+                    }
+
+                    if (x < tileEnd) {
+                        int color = topBorder ? edge[states[rowAbove + column]][state] : inside[state];
+                        Arrays.fill(pixels, offset + x, offset + tileEnd, color);
+                        x = tileEnd;
+                    }
+                }
+            }
+        }
+    }
+
+
+    static int premultiply(Color color) {
+        int alpha = color.getAlpha();
+        return (alpha << 24)
+            | (mul8(color.getRed(), alpha) << 16)
+            | (mul8(color.getGreen(), alpha) << 8)
+            | mul8(color.getBlue(), alpha);
+    }
+
+    // src over dst, both premultiplied
+    static int over(int src, int dst) {
+        int srcAlpha = src >>> 24;
+        if (srcAlpha == 255 || dst == 0) {
+            return src;
+        }
+        if (srcAlpha == 0) {
+            return dst;
+        }
+        // dst * (255 - srcAlpha) / 255, rounded as mul8, two channels per multiplication
+        int inverse = 255 - srcAlpha;
+        int rb = (dst & 0x00FF00FF) * inverse + 0x00800080;
+        rb = ((rb + ((rb >>> 8) & 0x00FF00FF)) >>> 8) & 0x00FF00FF;
+        int ag = ((dst >>> 8) & 0x00FF00FF) * inverse + 0x00800080;
+        ag = (ag + ((ag >>> 8) & 0x00FF00FF)) & 0xFF00FF00;
+        return src + (ag | rb);
+    }
+
+    private static int mul8(int a, int b) {
+        return (a * b + 127) / 255;
+    }
+}
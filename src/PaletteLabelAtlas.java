@@ -0,0 +1,130 @@
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+// Palette index labels "0" to "3" of the tile overlay, rendered once (antialiased) for a tile size
+// and a text color : OverlayRasterizer blends their pixels on the tiles, no text layout per tile.
+// Only the pixels covered by the glyphs are kept (most of a label is transparent).
+// Below 8 pixels tiles, the font is scaled down with the tiles.
+public class PaletteLabelAtlas {
+
+    public static final int MIN_TILE_SIZE = 4; // no labels on smaller tiles
+
+    private static final Font LABEL_FONT = new Font(Font.DIALOG, Font.PLAIN, 12); // default font of the overlay graphics
+    private static final int PADDING = 1; // antialiasing pixels around the glyphs
+
+    // glyph pixels of each label : position in the tile (may be outside) and ARGB premultiplied color
+    private final int[][] pixelX = new int[4][];
+    private final int[][] pixelY = new int[4][];
+    private final int[][] pixelColor = new int[4][];
+    private int tileSize = 0;
+    private Color color = null;
+    private int minX, maxX, minY, maxY; // bounds of the glyph pixels, in the tile
+
+
+
+    // Render the labels again if the tile size or the color changed
+    public void update(int tileSize, Color color) {
+        if (tileSize == this.tileSize && color.equals(this.color)) {
+            return;
+        }
+        this.tileSize = tileSize;
+        this.color = color;
+        if (tileSize < MIN_TILE_SIZE) {
+            return;
+        }
+
+        Font font = tileSize < ImageHandler.TILE_SIZE
+            ? LABEL_FONT.deriveFont(LABEL_FONT.getSize2D() * tileSize / ImageHandler.TILE_SIZE) : LABEL_FONT;
+
+        BufferedImage scratch = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D sg = scratch.createGraphics();
+        FontMetrics fm = sg.getFontMetrics(font);
+        sg.dispose();
+
+        // same placement as the former drawString at the tile center (baseline 3 pixels up at 12pt)
+        int textWidth = fm.stringWidth("3");
+        int textHeight = fm.getHeight();
+        int lift = tileSize < ImageHandler.TILE_SIZE ? 3 * tileSize / ImageHandler.TILE_SIZE : 3;
+        int baseline = (tileSize + textHeight) / 2 - lift;
+        int width = 0;
+        for (int palette = 0; palette < pixelColor.length; palette++) {
+            width = Math.max(width, fm.stringWidth(String.valueOf(palette)));
+        }
+        width += 2 * PADDING;
+        int height = fm.getAscent() + fm.getDescent() + 2 * PADDING;
+        int offsetX = (tileSize - textWidth) / 2 - PADDING;
+        int offsetY = baseline - fm.getAscent() - PADDING;
+
+        minX = minY = Integer.MAX_VALUE;
+        maxX = maxY = Integer.MIN_VALUE;
+        for (int palette = 0; palette < pixelColor.length; palette++) {
+            BufferedImage label = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+            Graphics2D g2d = label.createGraphics();
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2d.setFont(font);
+            g2d.setColor(color);
+            g2d.drawString(String.valueOf(palette), PADDING, PADDING + fm.getAscent());
+            g2d.dispose();
+
+            int[] data = ((DataBufferInt) label.getRaster().getDataBuffer()).getData();
+            int count = 0;
+            for (int argb : data) {
+                if (argb != 0) count++;
+            }
+            pixelX[palette] = new int[count];
+            pixelY[palette] = new int[count];
+            pixelColor[palette] = new int[count];
+            count = 0;
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] != 0) {
+                    pixelX[palette][count] = offsetX + i % width;
+                    pixelY[palette][count] = offsetY + i / width;
+                    pixelColor[palette][count] = data[i];
+                    minX = Math.min(minX, pixelX[palette][count]);
+                    maxX = Math.max(maxX, pixelX[palette][count]);
+                    minY = Math.min(minY, pixelY[palette][count]);
+                    maxY = Math.max(maxY, pixelY[palette][count]);
+                    count++;
+                }
+            }
+        }
+    }
+
+    // Tiles smaller than MIN_TILE_SIZE don't get labels
+    public boolean isVisible() {
+        return tileSize >= MIN_TILE_SIZE;
+    }
+
+    public int getMinX() {
+        return minX;
+    }
+
+    public int getMaxX() {
+        return maxX;
+    }
+
+    public int getMinY() {
+        return minY;
+    }
+
+    public int getMaxY() {
+        return maxY;
+    }
+
+    public int[] getPixelX(int palette) {
+        return pixelX[palette];
+    }
+
+    public int[] getPixelY(int palette) {
+        return pixelY[palette];
+    }
+
+    public int[] getPixelColor(int palette) {
+        return pixelColor[palette];
+    }
+}
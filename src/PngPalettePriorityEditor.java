@@ -1,13 +1,15 @@
 import java.awt.BorderLayout;
 import java.io.File;
 import java.io.IOException;
-import javax.imageio.ImageIO;
+import java.util.List;
 import javax.swing.*;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 
-public class PngPalettePriorityEditor extends JFrame {
+public class PngPalettePriorityEditor extends JFrame implements MainWindow {
+    public static final String VERSION = "0.6";
+
     private ImagePanel imagePanel;
 
     private final JMenu imageMenu;
@@ -17,6 +19,7 @@ public class PngPalettePriorityEditor extends JFrame {
     private boolean showGrid = true;
     private boolean showPaletteIndex = true;
     private boolean viewPaletteZero = false;
+    private boolean useMappedMask = false;
     
     private JCheckBoxMenuItem viewPaletteItem;
     
@@ -24,7 +27,7 @@ public class PngPalettePriorityEditor extends JFrame {
 
     public PngPalettePriorityEditor()
     {
-        setTitle("PNG Palette and Priority Editor for SGDK v0.6");
+        setTitle("PNG Palette and Priority Editor for SGDK v" + VERSION);
         setSize(800, 600);
         setDefaultCloseOperation(EXIT_ON_CLOSE);
         setLocationRelativeTo(null);
@@ -62,6 +65,11 @@ public class PngPalettePriorityEditor extends JFrame {
         loadImage.addActionListener(e -> imagePanel.loadImage());
         imageMenu.add(loadImage);
 
+        // option "Memory-mapped mask" : keeps the heap flat on huge images
+        JCheckBoxMenuItem mappedMaskItem = new JCheckBoxMenuItem("Memory-mapped Mask (huge images)", useMappedMask);
+        mappedMaskItem.addActionListener(e -> useMappedMask = mappedMaskItem.isSelected());
+        imageMenu.add(mappedMaskItem);
+
         
 
         // MENU "Mask"
@@ -84,21 +92,21 @@ public class PngPalettePriorityEditor extends JFrame {
         JCheckBoxMenuItem viewGridItem = new JCheckBoxMenuItem("View Grid", showGrid);
         viewGridItem.addActionListener(e -> {
             showGrid = viewGridItem.isSelected();
-            imagePanel.repaint();
+            imagePanel.refreshOverlay();
         });
 
         // option "View Palette Index Number"
         viewPaletteItem = new JCheckBoxMenuItem("View Palette Index", showPaletteIndex);
         viewPaletteItem.addActionListener(e -> {
             showPaletteIndex = viewPaletteItem.isSelected();
-            imagePanel.repaint();
+            imagePanel.refreshOverlay();
         });
 
         // option "View Palette Index Number"
         JCheckBoxMenuItem viewPaletteZeroItem = new JCheckBoxMenuItem("View Palette 0", viewPaletteZero);
         viewPaletteZeroItem.addActionListener(e -> {
             viewPaletteZero = viewPaletteZeroItem.isSelected();
-            imagePanel.repaint();
+            imagePanel.refreshOverlay();
         });
 
 
@@ -140,6 +148,7 @@ public class PngPalettePriorityEditor extends JFrame {
         getContentPane().add(statusBar, BorderLayout.SOUTH);
     }
 
+    @Override
     public void updateStatusBar(String text) {
         statusBar.setText(text);
     }
@@ -147,6 +156,7 @@ public class PngPalettePriorityEditor extends JFrame {
 
     // UI  
     // enable editing menu only after user load an image
+    @Override
     public void allowMenuChoice() {
         maskMenu.setEnabled(true);
         viewMenu.setEnabled(true);
@@ -186,7 +196,8 @@ public class PngPalettePriorityEditor extends JFrame {
         
         "* Selection:\n" +
         "  - Left Click & Drag: Select multiple tiles (lasso selection)\n" +
-        "  - CTRL + Left Click: Add multiple selection areas\n\n" +
+        "  - CTRL + Left Click: Add multiple selection areas\n" +
+        "  - ALT + Left Click & Drag: Remove an area from the selection\n\n" +
         
         "* Editing Tiles:\n" +
         "  You can right-click on tiles to edit their properties,\n" +
@@ -199,8 +210,24 @@ public class PngPalettePriorityEditor extends JFrame {
         "- - - - - - - BATCH MODE - - - - - - - - - - - - - - - - - - - \n\n" +
         "Run the editor from the command line:\n" +
         "   java -jar PPPE4SGDK.jar --b <image_path> <mask_path> <export_path>\n\n" +
+        "Options (after the paths):\n" +
+        "   --threads <n> : number of export and PNG compression threads (default : one per core, 1 = single thread)\n" +
+        "   --band <tile_rows> : height of the parallel export bands, in tile rows (default : 16)\n" +
+        "   --level <0-9> : PNG compression level of the output (default : 4, 1 = fastest, 9 = smallest)\n" +
+        "   --mapped : memory-map the mask file instead of loading it in memory (huge maps, raw mask files only)\n" +
+        "   --cache <directory> : skip the export when the image, the mask and the output didn't change since the last run\n\n" +
+        "Many exports in one run (asset pipelines):\n" +
+        "   java -jar PPPE4SGDK.jar --bm <manifest_file|directory> [--workers <n>] [--out <directory>]\n" +
+        "The manifest lists one job per line : <image_path> <mask_path> <export_path>\n" +
+        "With a directory, every <name>.png having a <name>.msk is exported to <name>_palprio.png\n" +
+        "   --workers <n> : number of jobs run at the same time (default : one per core)\n" +
+        "   --out <directory> : write the output images in this directory\n" +
+        "The exit code is not 0 when any job failed.\n\n" +
         "The image must be an indexed PNG (8bpp / only first 16 colors used)\n" +
-        "The mask file must be a valid .msk file, made previously using the GUI\n\n\n" +
+        "The mask file must be a valid .msk file, made previously using the GUI\n\n" +
+        "Mask files saved by older versions are still loaded, to convert them to the current format:\n" +
+        "   java -jar PPPE4SGDK.jar --convert <mask_path> <output_mask_path> [--encoding raw|rle|deflate]\n" +
+        "(rle is the default encoding, deflate gives the smallest files for huge maps)\n\n\n" +
         
         "Enjoy !\n" +
         "Rahzelk";
@@ -221,24 +248,23 @@ public class PngPalettePriorityEditor extends JFrame {
 
     // GETTER & SETTERS
     //
+    @Override
     public boolean getShowGrid() {
         return showGrid;
     }
 
+    @Override
     public boolean getShowPaletteIndex() {
         return showPaletteIndex;
     }
-    public void setShowPaletteIndex(boolean enable) {
-        showPaletteIndex = enable;
-        viewPaletteItem.setSelected(enable);
-    }
-    public void toggleViewPaletteItem(boolean enable)
-    {
-        viewPaletteItem.setEnabled(enable);
-    }
+    @Override
     public boolean getViewPaletteZero() {
         return viewPaletteZero;
     }
+    @Override
+    public boolean getUseMappedMask() {
+        return useMappedMask;
+    }
 
 
 
@@ -248,7 +274,7 @@ public class PngPalettePriorityEditor extends JFrame {
     @SuppressWarnings("CallToPrintStackTrace")
     public static void main(String[] args) 
     {
-        if(args.length == 0 || !args[0].equals("--b")) 
+        if(args.length == 0 || (!args[0].equals("--b") && !args[0].equals("--bm") && !args[0].equals("--convert"))) 
         {
             System.out.println("GUI mode detected...");
             SwingUtilities.invokeLater(() -> new PngPalettePriorityEditor().setVisible(true));
@@ -258,6 +284,59 @@ public class PngPalettePriorityEditor extends JFrame {
             System.out.println("Batch mode detected...");
             batchMode(args);
         }
+        else if(args[0].equals("--bm"))
+        {
+            System.out.println("Multi-job batch mode detected...");
+            manifestMode(args);
+        }
+        else if(args[0].equals("--convert"))
+        {
+            System.exit(convertMask(args));
+        }
+    }
+
+    // Rewrite a mask file (e.g. an old serialized one) in the current .msk format, returns the exit code
+    static int convertMask(String[] args)
+    {
+        if (args.length < 3) 
+        {
+            System.out.println("Missing parameters : please check the syntax below ");
+            System.out.println("java -jar PPPE4SGDK.jar --convert <mask_path> <output_mask_path> [--encoding raw|rle|deflate]");
+            return 0;
+        }
+
+        int encoding = MaskFile.DEFAULT_ENCODING;
+        for (int i = 3; i < args.length; i++)
+        {
+            if (args[i].equals("--encoding") && i + 1 < args.length) {
+                encoding = MaskFile.parseEncoding(args[++i]);
+            } else {
+                encoding = -1;
+            }
+
+            if (encoding < 0) {
+                System.err.println("Error: Unknown option: " + args[i]);
+                return 1;
+            }
+        }
+
+        File maskFile = new File(args[1]);
+        if (!maskFile.exists() || !maskFile.isFile()) {
+            System.err.println("Error: Mask file not found: " + args[1]);
+            return 1;
+        }
+
+        try
+        {
+            boolean legacy = MaskFile.isLegacy(maskFile);
+            Mask mask = MaskFile.read(maskFile);
+            MaskFile.write(mask, new File(args[2]), encoding);
+            System.out.println((legacy ? "Legacy mask converted" : "Mask rewritten") + ", output saved to " + args[2]);
+        } catch (IOException e) {
+            System.err.println("Error while converting the mask: " + e.getMessage());
+            return 1;
+        }
+        return 0;
     }
 
     private static void batchMode(String[] args)
@@ -265,7 +344,7 @@ public class PngPalettePriorityEditor extends JFrame {
         if (args.length < 4) 
         {
             System.out.println("Missing parameters : please check the syntax below ");
-            System.out.println("java -jar PPPE4SGDK.jar --b <image_path> <mask_path> <export_path>");
+            System.out.println("java -jar PPPE4SGDK.jar --b <image_path> <mask_path> <export_path> [--threads <n>] [--band <tile_rows>] [--level <0-9>] [--mapped] [--cache <directory>]");
             return;
         }
 
@@ -273,52 +352,58 @@ public class PngPalettePriorityEditor extends JFrame {
         String maskPath = args[2];
         String exportPath = args[3];
 
-        System.out.println("Validating inputs...");
+        // Optional export settings
+        BatchOptions options = parseBatchOptions(args, 4, false);
 
-        // Check files path
-        File imageFile = new File(imagePath);
-        File maskFile = new File(maskPath);
+        System.out.println("Processing...");
+        BatchJob job = new BatchJob(new File(imagePath), new File(maskPath), new File(exportPath));
 
-        if (!imageFile.exists() || !imageFile.isFile()) {
-            System.err.println("Error: Image file not found: " + imagePath);
+        if (job.run(options) != BatchJob.SUCCESS) {
+            System.err.println("Error: " + job.getMessage());
             System.exit(1);
         }
 
-        if (!maskFile.exists() || !maskFile.isFile()) {
-            System.err.println("Error: Mask file not found: " + maskPath);
-            System.exit(1);
-        }
+        System.out.println(job.isCacheHit() ? "Done, " + job.getOutputFile() + " is up to date (cache hit)" : "Done, " + job.getMessage());
+        System.exit(0);
+    }
 
-        System.out.println("Processing...");
-        try 
+    // Many jobs in one run, from a manifest file or a directory
+    private static void manifestMode(String[] args)
+    {
+        if (args.length < 2) 
         {
-            ImageHandler imageHandler = new ImageHandler();
-            int returnCode = imageHandler.setImage(ImageIO.read(new File(imagePath)));
-            if(returnCode > 0){
-                System.out.println(ImageHandler.getErrorMessage(returnCode));
-                return;
-            }  
-
-            Mask mask = AppFileHandler.loadMask(maskPath); // Charge le mask
-            imageHandler.setMask(mask);
-            imageHandler.applyMask();
-            
-            if(imageHandler.getExportedImage()!=null){
-                if(AppFileHandler.writeOutputImage(imageHandler.getExportedImage(), new File(exportPath))==AppFileHandler.ERR_WRITE_EXPORT_IMAGE)
-                {
-                    System.out.println("Error while writing the output PNG file !");
-                    return;
-                }
-                else
-                {
-                    System.out.println("Done, output saved to " + exportPath);
-                }
-            }
+            System.out.println("Missing parameters : please check the syntax below ");
+            System.out.println("java -jar PPPE4SGDK.jar --bm <manifest_file|directory> [--workers <n>] [--out <directory>] [--threads <n>] [--band <tile_rows>] [--level <0-9>] [--mapped] [--cache <directory>]");
+            return;
+        }
+
+        BatchOptions options = parseBatchOptions(args, 2, true);
 
+        List<BatchJob> jobs;
+        try {
+            jobs = BatchRunner.loadJobs(new File(args[1]), options.outputDirectory);
         } catch (IOException e) {
-            System.err.println("Error in batch mode: " + e.getMessage());
-            e.printStackTrace();
+            System.err.println("Error: Unable to read the manifest: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        if (options.outputDirectory != null) {
+            new File(options.outputDirectory).mkdirs();
+        }
+
+        int failed = new BatchRunner(options).run(jobs);
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+    private static BatchOptions parseBatchOptions(String[] args, int first, boolean manifestMode)
+    {
+        try {
+            return BatchOptions.parse(args, first, manifestMode);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+            return null;
         }
-        System.exit(0);
     }
 }
\ No newline at end of file
@@ -1,6 +1,10 @@
 import java.io.Serializable;
 
+// Attributes of one tile (mask cell). Tiles are stored packed in the Mask,
+// this class is only used as a value object (and for the legacy .msk format).
 public class Tile implements Serializable {
+    private static final long serialVersionUID = 7906095447774429586L;
+
     private final int x, y;
     private int palette;
     private int priority;
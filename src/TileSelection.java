@@ -0,0 +1,227 @@
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+// Set of selected tiles of a mask, stored as a bitmap : one bit per tile, row by row
+// (bit index = y * width + x, same order as TileStore).
+// The number of tiles and the bounding box are kept up to date, rectangles are added
+// or removed a 64-tile word at a time.
+public class TileSelection {
+
+    private final int width;
+    private final int height;
+    private final long[] bits;
+
+    private int count = 0;
+    private Rectangle bounds = new Rectangle(); // empty when nothing is selected
+    private boolean boundsValid = true;          // false after a subtract, recomputed on demand
+
+
+
+    public TileSelection(int width, int height) {
+        this.width = Math.max(0, width);
+        this.height = Math.max(0, height);
+        this.bits = new long[(int) (((long) this.width * this.height + 63) >>> 6)];
+    }
+
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean contains(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            return false;
+        }
+        int index = y * width + x;
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    public boolean contains(Point p) {
+        return contains(p.x, p.y);
+    }
+
+    // Number of selected tiles
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    // Smallest rectangle containing the selected tiles (empty rectangle if none)
+    public Rectangle getBounds() {
+        if (!boundsValid) {
+            computeBounds();
+        }
+        return new Rectangle(bounds);
+    }
+
+    // True if the selected tiles form a full rectangle
+    public boolean isRectangle() {
+        Rectangle r = getBounds();
+        return count > 0 && count == r.width * r.height;
+    }
+
+
+    public void add(int x, int y) {
+        addRect(new Rectangle(x, y, 1, 1));
+    }
+
+    // Select all the tiles of a rectangle (clipped to the mask)
+    public void addRect(Rectangle tiles) {
+        Rectangle area = clip(tiles);
+        if (area.isEmpty()) {
+            return;
+        }
+        for (int y = area.y; y < area.y + area.height; y++) {
+            int from = y * width + area.x;
+            setRange(from, from + area.width, true);
+        }
+
+        if (!boundsValid) {
+            return; // will be recomputed
+        }
+        if (bounds.isEmpty()) {
+            bounds = area;
+        } else {
+            bounds.add(area);
+        }
+    }
+
+    // Unselect all the tiles of a rectangle
+    public void subtractRect(Rectangle tiles) {
+        Rectangle area = clip(tiles);
+        if (area.isEmpty() || count == 0) {
+            return;
+        }
+        for (int y = area.y; y < area.y + area.height; y++) {
+            int from = y * width + area.x;
+            setRange(from, from + area.width, false);
+        }
+        boundsValid = false;
+    }
+
+    // Add all the tiles of another selection of the same size
+    public void add(TileSelection other) {
+        combine(other, false);
+    }
+
+    // Remove all the tiles of another selection of the same size
+    public void subtract(TileSelection other) {
+        combine(other, true);
+    }
+
+    public void clear() {
+        Arrays.fill(bits, 0L);
+        count = 0;
+        bounds = new Rectangle();
+        boundsValid = true;
+    }
+
+
+    // Index (y * width + x) of the first selected tile at or after fromIndex, -1 if none
+    public int nextIndex(int fromIndex) {
+        if (fromIndex < 0) {
+            fromIndex = 0;
+        }
+        int word = fromIndex >>> 6;
+        if (word >= bits.length) {
+            return -1;
+        }
+        long value = bits[word] & (-1L << fromIndex);
+        while (true) {
+            if (value != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(value);
+            }
+            if (++word == bits.length) {
+                return -1;
+            }
+            value = bits[word];
+        }
+    }
+
+    // First selected tile (null if none)
+    public Point first() {
+        int index = nextIndex(0);
+        return index < 0 ? null : new Point(index % width, index / width);
+    }
+
+    // Words of the bitmap, bit (index & 63) of word (index >>> 6) : read only
+    long[] words() {
+        return bits;
+    }
+
+
+    private Rectangle clip(Rectangle tiles) {
+        return tiles.intersection(new Rectangle(0, 0, width, height));
+    }
+
+    // Set or clear the bits [from, to[
+    private void setRange(int from, int to, boolean selected) {
+        int firstWord = from >>> 6;
+        int lastWord = (to - 1) >>> 6;
+
+        for (int w = firstWord; w <= lastWord; w++) {
+            long mask = -1L;
+            if (w == firstWord) {
+                mask &= -1L << from;
+            }
+            if (w == lastWord) {
+                mask &= -1L >>> -to; // bits below 'to'
+            }
+            long old = bits[w];
+            long value = selected ? old | mask : old & ~mask;
+            count += Long.bitCount(value) - Long.bitCount(old);
+            bits[w] = value;
+        }
+    }
+
+    private void combine(TileSelection other, boolean subtract) {
+        if (other.width != width || other.height != height) {
+            throw new IllegalArgumentException("Selections of different sizes");
+        }
+        count = 0;
+        for (int w = 0; w < bits.length; w++) {
+            bits[w] = subtract ? bits[w] & ~other.bits[w] : bits[w] | other.bits[w];
+            count += Long.bitCount(bits[w]);
+        }
+        boundsValid = false;
+    }
+
+    private void computeBounds() {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = -1, maxY = -1;
+
+        for (int w = 0; w < bits.length; w++) {
+            long value = bits[w];
+            if (value == 0) {
+                continue;
+            }
+            int first = (w << 6) + Long.numberOfTrailingZeros(value);
+            int last = (w << 6) + 63 - Long.numberOfLeadingZeros(value);
+
+            minY = Math.min(minY, first / width);
+            maxY = Math.max(maxY, last / width);
+            // a word may span several rows : check each row part
+            for (int row = first / width; row <= last / width; row++) {
+                int rowStart = Math.max(first, row * width);
+                int rowEnd = Math.min(last, row * width + width - 1);
+                long rowBits = value & (-1L << rowStart) & (-1L >>> (63 - (rowEnd & 63)));
+                if (rowBits == 0) {
+                    continue;
+                }
+                minX = Math.min(minX, (w << 6) + Long.numberOfTrailingZeros(rowBits) - row * width);
+                maxX = Math.max(maxX, (w << 6) + 63 - Long.numberOfLeadingZeros(rowBits) - row * width);
+            }
+        }
+
+        bounds = maxX < 0 ? new Rectangle() : new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+        boundsValid = true;
+    }
+}
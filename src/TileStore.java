@@ -0,0 +1,132 @@
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+
+// Packed storage of the tile attributes : one byte per tile, row by row.
+//
+// The byte uses the same layout as the high nibble of an exported pixel,
+// so it can be OR'ed as is on the 4bpp color index :
+//    bit 7    -> priority (0 = low, 1 = high)
+//    bits 4-5 -> palette index (0-3)
+public class TileStore {
+
+    public static final int PRIORITY_SHIFT = 7;
+    public static final int PALETTE_SHIFT = 4;
+    public static final int PRIORITY_BITS = 1 << PRIORITY_SHIFT;
+    public static final int PALETTE_BITS = 0x03 << PALETTE_SHIFT;
+
+    private final int width;
+    private final int height;
+    private final ByteBuffer data;
+
+
+
+    public TileStore(int width, int height) {
+        this(width, height, ByteBuffer.allocate(width * height));
+    }
+
+    // Wrap an existing buffer (heap or direct), it must hold at least width*height bytes
+    public TileStore(int width, int height, ByteBuffer data) {
+        if (data.capacity() < width * height) {
+            throw new IllegalArgumentException("Tile buffer too small for " + width + "x" + height + " tiles");
+        }
+        this.width = width;
+        this.height = height;
+        this.data = data;
+    }
+
+
+    public static int pack(int palette, int priority) {
+        return ((priority << PRIORITY_SHIFT) & PRIORITY_BITS) | ((palette << PALETTE_SHIFT) & PALETTE_BITS);
+    }
+
+    public static int unpackPalette(int packed) {
+        return (packed & PALETTE_BITS) >> PALETTE_SHIFT;
+    }
+
+    public static int unpackPriority(int packed) {
+        return (packed & PRIORITY_BITS) >> PRIORITY_SHIFT;
+    }
+
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int size() {
+        return width * height;
+    }
+
+    public int get(int index) {
+        return data.get(index) & 0xFF;
+    }
+
+    public void set(int index, int packed) {
+        data.put(index, (byte) packed);
+    }
+
+    // Set tiles [from, to[ to the same packed value
+    public void fill(int from, int to, int packed) {
+        if (data.hasArray()) {
+            Arrays.fill(data.array(), data.arrayOffset() + from, data.arrayOffset() + to, (byte) packed);
+        } else {
+            for (int i = from; i < to; i++) {
+                data.put(i, (byte) packed);
+            }
+        }
+    }
+
+    // Tiles [from, to[ become (tile & andMask) | orMask
+    public void apply(int from, int to, int andMask, int orMask) {
+        if (data.hasArray()) {
+            byte[] array = data.array();
+            int end = data.arrayOffset() + to;
+            for (int i = data.arrayOffset() + from; i < end; i++) {
+                array[i] = (byte) ((array[i] & andMask) | orMask);
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                data.put(i, (byte) ((data.get(i) & andMask) | orMask));
+            }
+        }
+    }
+
+    // True if the tiles live in a memory-mapped file (see MaskFile.createMapped)
+    public boolean isMapped() {
+        return data instanceof MappedByteBuffer;
+    }
+
+    // Write the modified tiles of a mapped store back to its file
+    public void flush() {
+        if (data instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) data).force();
+        }
+    }
+
+    // Copy all the tiles of another store with the same size
+    public void copyFrom(TileStore other) {
+        if (other.width != width || other.height != height) {
+            throw new IllegalArgumentException("Tile stores have different sizes");
+        }
+        duplicateBuffer().put(other.duplicateBuffer());
+    }
+
+    // View on the tiles bytes (shares the content), positioned on the first tile :
+    // used to read/write them through NIO channels
+    public ByteBuffer duplicateBuffer() {
+        ByteBuffer buffer = data.duplicate();
+        buffer.clear().limit(size());
+        return buffer;
+    }
+
+    // Copy a run of tiles into a byte array (e.g. a full tile row)
+    public void get(int index, byte[] dst, int offset, int length) {
+        ByteBuffer src = data.duplicate();
+        src.clear().position(index);
+        src.get(dst, offset, length);
+    }
+}
@@ -0,0 +1,85 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// Undo/redo history of the mask edits (see MaskEdit).
+// Edits are deltas, so the history is bounded by the memory they use, not by a number of steps :
+// the oldest edits are dropped when memoryLimit is exceeded.
+public class UndoHistory {
+
+    public static final long DEFAULT_MEMORY_LIMIT = 32L * 1024 * 1024;
+
+    private final long memoryLimit;
+
+    private final Deque<MaskEdit> undoStack = new ArrayDeque<>();
+    private final Deque<MaskEdit> redoStack = new ArrayDeque<>();
+    private long memoryUsed = 0;
+
+
+
+    public UndoHistory() {
+        this(DEFAULT_MEMORY_LIMIT);
+    }
+
+    public UndoHistory(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+
+    // Add a finished edit : empty edits are ignored, the redo history is dropped
+    public void push(MaskEdit edit) {
+        if (edit.getTileCount() == 0) {
+            return;
+        }
+        for (MaskEdit dropped : redoStack) {
+            memoryUsed -= dropped.getMemorySize();
+        }
+        redoStack.clear();
+
+        undoStack.push(edit);
+        memoryUsed += edit.getMemorySize();
+
+        // keep at least the last edit, whatever its size
+        while (memoryUsed > memoryLimit && undoStack.size() > 1) {
+            memoryUsed -= undoStack.removeLast().getMemorySize();
+        }
+    }
+
+    // Undo the last edit, returns it (null if nothing to undo)
+    public MaskEdit undo() {
+        MaskEdit edit = undoStack.poll();
+        if (edit != null) {
+            edit.undo();
+            redoStack.push(edit);
+        }
+        return edit;
+    }
+
+    // Redo the last undone edit, returns it (null if nothing to redo)
+    public MaskEdit redo() {
+        MaskEdit edit = redoStack.poll();
+        if (edit != null) {
+            edit.redo();
+            undoStack.push(edit);
+        }
+        return edit;
+    }
+
+    // Forget everything (e.g. a new mask is loaded)
+    public void clear() {
+        undoStack.clear();
+        redoStack.clear();
+        memoryUsed = 0;
+    }
+
+    public int getUndoCount() {
+        return undoStack.size();
+    }
+
+    public int getRedoCount() {
+        return redoStack.size();
+    }
+
+    public long getMemoryUsed() {
+        return memoryUsed;
+    }
+}
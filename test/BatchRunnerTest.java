@@ -0,0 +1,183 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Multi-job batch mode : options, manifest syntax, directory scan, and the count of failed jobs.
+public class BatchRunnerTest {
+
+    @TempDir
+    File directory;
+
+
+    @Test
+    public void defaultOptions() {
+        BatchOptions single = BatchOptions.parse(new String[] { "--b", "image.png", "mask.msk", "out.png" }, 4, false);
+        assertEquals(0, single.exportThreads);
+        assertEquals(ImageHandler.DEFAULT_EXPORT_BAND_SIZE, single.exportBandSize);
+        assertEquals(false, single.mappedMask);
+        assertNull(single.cache);
+        assertEquals(IndexedPngEncoder.DEFAULT_COMPRESSION_LEVEL, single.compressionLevel);
+
+        // jobs run in parallel : one export thread each
+        BatchOptions manifest = BatchOptions.parse(new String[] { "--bm", "jobs.txt" }, 2, true);
+        assertEquals(1, manifest.exportThreads);
+        assertEquals(0, manifest.workers);
+        assertNull(manifest.outputDirectory);
+    }
+
+    @Test
+    public void options() {
+        BatchOptions options = BatchOptions.parse(new String[] {
+            "--bm", "jobs.txt", "--workers", "3", "--out", "exported", "--threads", "2", "--band", "8", "--mapped",
+            "--cache", "cache", "--level", "9" }, 2, true);
+        assertEquals(3, options.workers);
+        assertEquals("exported", options.outputDirectory);
+        assertEquals(2, options.exportThreads);
+        assertEquals(8, options.exportBandSize);
+        assertTrue(options.mappedMask);
+        assertNotNull(options.cache);
+        assertEquals(9, options.compressionLevel);
+        assertEquals(0, BatchOptions.parse(new String[] { "--level", "0" }, 0, false).compressionLevel);
+    }
+
+    @Test
+    public void invalidOptionsAreRejected() {
+        String[][] invalid = {
+            { "--workers", "x" },
+            { "--workers", "-1" },
+            { "--workers" },          // no value
+            { "--out" },
+            { "--cache" },
+            { "--level", "-1" },
+            { "--level", "10" },
+            { "--level", "fast" },
+            { "--level" },
+            { "--threads", "-2" },
+            { "--band", "0" },
+            { "--band", "1.5" },
+            { "--unknown" },
+            { "extra.png" }
+        };
+        for (String[] args : invalid) {
+            assertThrows(IllegalArgumentException.class, () -> BatchOptions.parse(args, 0, true), Arrays.toString(args));
+        }
+
+        // manifest mode only
+        assertThrows(IllegalArgumentException.class, () -> BatchOptions.parse(new String[] { "--workers", "2" }, 0, false));
+        assertThrows(IllegalArgumentException.class, () -> BatchOptions.parse(new String[] { "--out", "dir" }, 0, false));
+    }
+
+
+    @Test
+    public void manifestSyntax() throws IOException {
+        File manifest = write("jobs.txt",
+            "# sprites of level 1",
+            "",
+            "a.png a.msk out/a.png",
+            "   \t",
+            "\"with space.png\"  \"masks/with space.msk\"\tout/b.png   # comment after the job",
+            "\"#not a comment.png\" c.msk \"out/c #1.png\"",
+            new File(directory, "absolute.png").getAbsolutePath() + " d.msk d.png");
+
+        List<BatchJob> jobs = BatchRunner.loadJobs(manifest, null);
+        assertEquals(4, jobs.size());
+        assertJob(jobs.get(0), "a.png", "a.msk", "out/a.png");
+        assertJob(jobs.get(1), "with space.png", "masks/with space.msk", "out/b.png");
+        assertJob(jobs.get(2), "#not a comment.png", "c.msk", "out/c #1.png");
+        assertJob(jobs.get(3), "absolute.png", "d.msk", "d.png");
+    }
+
+    // --out : the output images go to that directory, whatever the path in the manifest
+    @Test
+    public void manifestOutputDirectory() throws IOException {
+        File manifest = write("jobs.txt", "a.png a.msk out/a_export.png");
+        List<BatchJob> jobs = BatchRunner.loadJobs(manifest, "exported");
+        assertEquals(new File("exported", "a_export.png"), jobs.get(0).getOutputFile());
+    }
+
+    @Test
+    public void malformedLinesAreRejected() throws IOException {
+        String[] malformed = { "a.png a.msk", "a.png a.msk out.png extra.png", "\"a.png a.msk out.png\"" };
+        for (String line : malformed) {
+            File manifest = write("bad.txt", "# header", "a.png a.msk out.png", line);
+            IOException e = assertThrows(IOException.class, () -> BatchRunner.loadJobs(manifest, null), line);
+            assertTrue(e.getMessage().contains("line 3"), e.getMessage());
+        }
+    }
+
+    @Test
+    public void directoryScan() throws IOException {
+        for (String name : new String[] { "b.png", "b.msk", "a.png", "a.msk", "alone.png", "a_palprio.png", "notes.txt" }) {
+            Files.write(new File(directory, name).toPath(), new byte[0]);
+        }
+
+        List<BatchJob> jobs = BatchRunner.loadJobs(directory, null);
+        assertEquals(2, jobs.size());
+        assertEquals(new File(directory, "a.png"), jobs.get(0).getImageFile());
+        assertEquals(new File(directory, "a.msk"), jobs.get(0).getMaskFile());
+        assertEquals(new File(directory, "a_palprio.png"), jobs.get(0).getOutputFile());
+        assertEquals(new File(directory, "b_palprio.png"), jobs.get(1).getOutputFile());
+    }
+
+
+    @Test
+    public void failedJobsAreCounted() throws IOException {
+        File image = new File(directory, "image.png");
+        ImageIO.write(ExportModesTest.randomImage(64, 48, 1), "png", image);
+        File mask = new File(directory, "image.msk");
+        MaskFile.write(new Mask(8, 6), mask);
+        File notAMask = write("bad.msk", "not a mask");
+
+        BatchJob good = new BatchJob(image, mask, new File(directory, "good.png"));
+        BatchJob missingImage = new BatchJob(new File(directory, "missing.png"), mask, new File(directory, "missing_out.png"));
+        BatchJob badMask = new BatchJob(image, notAMask, new File(directory, "bad_out.png"));
+        // job failing outside of its own error handling
+        BatchJob crashed = new BatchJob(image, mask, new File(directory, "crashed.png")) {
+            @Override
+            public int run(BatchOptions options) {
+                throw new StackOverflowError();
+            }
+        };
+        assertNotEquals(BatchJob.SUCCESS, crashed.getReturnCode());
+
+        BatchOptions options = BatchOptions.parse(new String[] { "--workers", "2" }, 0, true);
+        assertEquals(3, new BatchRunner(options).run(Arrays.asList(good, missingImage, badMask, crashed)));
+
+        assertEquals(BatchJob.SUCCESS, good.getReturnCode());
+        assertTrue(new File(directory, "good.png").isFile());
+        assertEquals(BatchJob.ERR_IMAGE_NOT_FOUND, missingImage.getReturnCode());
+        assertEquals(BatchJob.ERR_INVALID_MASK, badMask.getReturnCode());
+        assertEquals(BatchJob.ERR_NOT_RUN, crashed.getReturnCode());
+    }
+
+
+    private void assertJob(BatchJob job, String image, String mask, String output) {
+        assertEquals(resolve(image), job.getImageFile());
+        assertEquals(resolve(mask), job.getMaskFile());
+        assertEquals(resolve(output), job.getOutputFile());
+    }
+
+    private File resolve(String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(directory.getAbsoluteFile(), path);
+    }
+
+    private File write(String name, String... lines) throws IOException {
+        File file = new File(directory, name);
+        Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+        return file;
+    }
+}
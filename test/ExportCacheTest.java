@@ -0,0 +1,129 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Export cache : what makes a job up to date, and what misses the cache.
+public class ExportCacheTest {
+
+    private static final long OLD_DATE = 1500000000000L;
+    private static final String SETTINGS = "level 4";
+
+    @TempDir
+    File directory;
+
+    private File image;
+    private File mask;
+    private File output;
+    private ExportCache cache;
+
+
+    @BeforeEach
+    public void createInputs() throws IOException {
+        image = new File(directory, "image.png");
+        ImageIO.write(ExportModesTest.randomImage(64, 48, 1), "png", image);
+        mask = new File(directory, "image.msk");
+        MaskFile.write(MaskFileTest.randomMask(8, 6, 2), mask);
+        output = new File(directory, "out.png");
+        cache = new ExportCache(new File(directory, "cache"));
+    }
+
+
+    @Test
+    public void cacheHitSkipsTheExport() throws IOException {
+        BatchOptions options = BatchOptions.parse(new String[] { "--cache", new File(directory, "cache").getPath() }, 0, false);
+        BatchJob first = new BatchJob(image, mask, output);
+        assertEquals(BatchJob.SUCCESS, first.run(options));
+        assertFalse(first.isCacheHit());
+        byte[] exported = Files.readAllBytes(output.toPath());
+
+        // an old date, recorded in the cache : a new export would change it
+        assertTrue(output.setLastModified(OLD_DATE));
+        options.cache.store(options.cache.computeKey(image, mask, output, "level " + options.compressionLevel), output);
+
+        BatchJob second = new BatchJob(image, mask, output);
+        assertEquals(BatchJob.SUCCESS, second.run(options));
+        assertTrue(second.isCacheHit());
+        assertEquals(OLD_DATE, output.lastModified());
+        assertArrayEquals(exported, Files.readAllBytes(output.toPath()));
+
+        // other compression level : exported again
+        BatchOptions level = BatchOptions.parse(new String[] { "--cache", new File(directory, "cache").getPath(), "--level", "9" }, 0, false);
+        BatchJob otherLevel = new BatchJob(image, mask, output);
+        assertEquals(BatchJob.SUCCESS, otherLevel.run(level));
+        assertFalse(otherLevel.isCacheHit());
+        assertNotEquals(OLD_DATE, output.lastModified());
+
+        // output gone : exported again
+        assertTrue(output.delete());
+        BatchJob third = new BatchJob(image, mask, output);
+        assertEquals(BatchJob.SUCCESS, third.run(options));
+        assertFalse(third.isCacheHit());
+        assertTrue(output.isFile());
+    }
+
+    @Test
+    public void changedInputsMissTheCache() throws IOException {
+        String key = cache.computeKey(image, mask, output, SETTINGS);
+        assertEquals(key, cache.computeKey(image, mask, output, SETTINGS));
+
+        assertNotEquals(key, cache.computeKey(image, mask, new File(directory, "other.png"), SETTINGS));
+        assertNotEquals(key, cache.computeKey(image, mask, output, "level 9"));
+        assertNotEquals(key, cache.computeKey(image, mask, output, SETTINGS, PngPalettePriorityEditor.VERSION + "-next"));
+
+        flipLastByte(image);
+        String imageChanged = cache.computeKey(image, mask, output, SETTINGS);
+        assertNotEquals(key, imageChanged);
+
+        flipLastByte(mask);
+        assertNotEquals(imageChanged, cache.computeKey(image, mask, output, SETTINGS));
+    }
+
+    @Test
+    public void modifiedOutputInvalidatesTheEntry() throws IOException {
+        String key = cache.computeKey(image, mask, output, SETTINGS);
+        assertFalse(cache.isUpToDate(key, output));
+
+        Files.write(output.toPath(), new byte[100]);
+        assertTrue(output.setLastModified(OLD_DATE));
+        cache.store(key, output);
+        assertTrue(cache.isUpToDate(key, output));
+        assertFalse(cache.isUpToDate(cache.computeKey(image, mask, new File(directory, "other.png"), SETTINGS), output));
+
+        // same length, other date
+        assertTrue(output.setLastModified(OLD_DATE + 2000));
+        assertFalse(cache.isUpToDate(key, output));
+
+        // same date, other length
+        Files.write(output.toPath(), new byte[101]);
+        assertTrue(output.setLastModified(OLD_DATE));
+        assertFalse(cache.isUpToDate(key, output));
+
+        // deleted
+        Files.write(output.toPath(), new byte[100]);
+        assertTrue(output.setLastModified(OLD_DATE));
+        assertTrue(cache.isUpToDate(key, output));
+        assertTrue(output.delete());
+        assertFalse(cache.isUpToDate(key, output));
+    }
+
+
+    private static void flipLastByte(File file) throws IOException {
+        try (RandomAccessFile access = new RandomAccessFile(file, "rw")) {
+            access.seek(access.length() - 1);
+            int last = access.read();
+            access.seek(access.length() - 1);
+            access.write(last ^ 1);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+
+// The fast exports (EXPORT_MODE_FAST, EXPORT_MODE_IN_PLACE, exportStream) must give the very
+// same pixels as EXPORT_MODE_REFERENCE, including the pixels of the last partial tile row / column.
+public class ExportModesTest {
+
+    // widths and heights not multiple of 8 leave pixels outside the mask
+    private static final int[][] SIZES = {
+        { 1, 1 }, { 7, 9 }, { 8, 8 }, { 13, 21 }, { 64, 64 }, { 257, 130 }, { 1000, 333 }, { 2049, 1500 }
+    };
+
+
+    @Test
+    public void fastExportMatchesReference() {
+        for (int[] size : SIZES) {
+            BufferedImage image = randomImage(size[0], size[1], 1);
+            Mask mask = randomMask(image, 2);
+            byte[] reference = export(image, mask, ImageHandler.EXPORT_MODE_REFERENCE, 1);
+
+            assertArrayEquals(reference, export(image, mask, ImageHandler.EXPORT_MODE_FAST, 1), name("fast", size));
+            assertArrayEquals(reference, export(image, mask, ImageHandler.EXPORT_MODE_FAST, 4), name("fast, 4 threads", size));
+        }
+    }
+
+    @Test
+    public void inPlaceExportMatchesReference() {
+        for (int[] size : SIZES) {
+            BufferedImage image = randomImage(size[0], size[1], 3);
+            Mask mask = randomMask(image, 4);
+            byte[] reference = export(image, mask, ImageHandler.EXPORT_MODE_REFERENCE, 1);
+
+            assertArrayEquals(reference, export(image, mask, ImageHandler.EXPORT_MODE_IN_PLACE, 1), name("in place", size));
+            assertArrayEquals(reference, export(image, mask, ImageHandler.EXPORT_MODE_IN_PLACE, 4), name("in place, 4 threads", size));
+        }
+    }
+
+    @Test
+    public void streamExportMatchesReference() throws IOException {
+        for (int[] size : SIZES) {
+            BufferedImage image = randomImage(size[0], size[1], 5);
+            Mask mask = randomMask(image, 6);
+            byte[] reference = export(image, mask, ImageHandler.EXPORT_MODE_REFERENCE, 1);
+
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", png);
+            IndexedPngDecoder decoder = new IndexedPngDecoder(new ByteArrayInputStream(png.toByteArray()));
+            ByteArrayOutputStream exported = new ByteArrayOutputStream();
+            try {
+                assertEquals(true, decoder.readHeader(), name("decoder header", size));
+                ImageHandler handler = new ImageHandler();
+                handler.setMask(new Mask(mask));
+                assertEquals(ImageHandler.SUCCESS, handler.exportStream(decoder, new IndexedPngEncoder(), exported));
+            } finally {
+                decoder.end();
+            }
+
+            assertArrayEquals(reference, pixels(ImageIO.read(new ByteArrayInputStream(exported.toByteArray()))), name("stream", size));
+        }
+    }
+
+
+    // Exported pixels of a copy of image (the in place export overwrites its source)
+    private static byte[] export(BufferedImage image, Mask mask, int exportMode, int threads) {
+        ImageHandler handler = new ImageHandler();
+        assertEquals(ImageHandler.SUCCESS, handler.setImage(copy(image)));
+        handler.setMask(new Mask(mask));
+        handler.setExportMode(exportMode);
+        handler.setExportThreads(threads);
+        handler.setExportBandSize(2); // several bands even on the small images
+        assertEquals(ImageHandler.SUCCESS, handler.applyMask());
+        return pixels(handler.getExportedImage());
+    }
+
+    static byte[] pixels(BufferedImage image) {
+        return (byte[]) image.getRaster().getDataElements(0, 0, image.getWidth(), image.getHeight(), null);
+    }
+
+    // 16 colors image, color indexes 0 to 15
+    static BufferedImage randomImage(int width, int height, long seed) {
+        byte[] reds = new byte[16], greens = new byte[16], blues = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            reds[i] = (byte) (i * 16);
+            greens[i] = (byte) (255 - i * 11);
+            blues[i] = (byte) (i * 37);
+        }
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED,
+            new IndexColorModel(8, 16, reds, greens, blues));
+
+        Random random = new Random(seed);
+        byte[] row = new byte[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                row[x] = (byte) random.nextInt(16);
+            }
+            image.getRaster().setDataElements(0, y, width, 1, row);
+        }
+        return image;
+    }
+
+    private static Mask randomMask(BufferedImage image, long seed) {
+        Mask mask = new Mask(image.getWidth() / ImageHandler.TILE_SIZE, image.getHeight() / ImageHandler.TILE_SIZE);
+        Random random = new Random(seed);
+        for (int y = 0; y < mask.getHeight(); y++) {
+            for (int x = 0; x < mask.getWidth(); x++) {
+                mask.setTileProperties(x, y, random.nextInt(4), random.nextInt(2));
+            }
+        }
+        return mask;
+    }
+
+    private static BufferedImage copy(BufferedImage image) {
+        return new BufferedImage(image.getColorModel(), image.copyData(null), false, null);
+    }
+
+    private static String name(String mode, int[] size) {
+        return mode + " " + size[0] + "x" + size[1];
+    }
+}
@@ -0,0 +1,268 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+
+// IndexedPngDecoder against ImageIO.read, on PNG files written here : the rows use the 5 filter
+// types in turn, the image data is split in several IDAT chunks, and the PLTE chunk has fewer
+// entries than the color indexes used (palette rounded as ImageIO does).
+public class IndexedPngDecoderTest {
+
+    private static final int[] PALETTE_SIZES = { 1, 3, 10, 16, 17, 256 };
+    private static final int[][] SIZES = { { 1, 1 }, { 5, 9 }, { 64, 33 }, { 1000, 300 } };
+
+
+    @Test
+    public void decodesAsImageIo() throws IOException {
+        for (int paletteSize : PALETTE_SIZES) {
+            for (int[] size : SIZES) {
+                byte[] pixels = randomPixels(size[0], size[1], paletteSize);
+                assertDecodedAsImageIo(png(size[0], size[1], pixels, paletteSize, null, 1000),
+                    size[0] + "x" + size[1] + ", PLTE " + paletteSize);
+            }
+        }
+    }
+
+    @Test
+    public void transparencyChunk() throws IOException {
+        for (int paletteSize : PALETTE_SIZES) {
+            byte[] alphas = new byte[Math.min(paletteSize, 5)];
+            for (int i = 0; i < alphas.length; i++) {
+                alphas[i] = (byte) (i * 60);
+            }
+            byte[] pixels = randomPixels(64, 33, paletteSize);
+            assertDecodedAsImageIo(png(64, 33, pixels, paletteSize, alphas, 1000), "tRNS, PLTE " + paletteSize);
+        }
+    }
+
+    // IDAT chunks of a few bytes : the inflater input is refilled across chunk boundaries
+    @Test
+    public void smallIdatChunks() throws IOException {
+        byte[] pixels = randomPixels(300, 50, 16);
+        assertDecodedAsImageIo(png(300, 50, pixels, 16, null, 7), "IDAT chunks of 7 bytes");
+    }
+
+    @Test
+    public void firstInvalidPixel() throws IOException {
+        byte[] pixels = randomPixels(40, 20, 16);
+        pixels[13 * 40 + 21] = 16;
+        pixels[17 * 40 + 3] = (byte) 200;
+
+        IndexedPngDecoder decoder = new IndexedPngDecoder(new ByteArrayInputStream(png(40, 20, pixels, 256, null, 1000)));
+        try {
+            assertTrue(decoder.readHeader());
+            decoder.decodeImage(null);
+            assertEquals(new Point(21, 13), decoder.getInvalidPixel());
+            assertEquals(16, decoder.getInvalidPixelColor());
+        } finally {
+            decoder.end();
+        }
+    }
+
+    // The check runs on each row right after it is unfiltered : the position reported must be the
+    // first invalid pixel in reading order, for every filter type (row y uses filter y % 5), at the
+    // first and last columns of a row, and after other invalid pixels further down.
+    @Test
+    public void invalidPixelPositions() throws IOException {
+        int width = 37, height = 12;
+        for (int y = 0; y < height; y++) {
+            for (int x : new int[] { 0, 1, 18, width - 1 }) {
+                byte[] pixels = randomPixels(width, height, 16);
+                // more invalid pixels after the first one
+                pixels[height * width - 1] = (byte) 255;
+                if (x + 1 < width) {
+                    pixels[y * width + x + 1] = (byte) 17;
+                }
+                int color = 16 + (x * 7 + y * 13) % 240;
+                pixels[y * width + x] = (byte) color;
+                byte[] png = png(width, height, pixels, 256, null, 1000);
+                String name = "invalid pixel at " + x + ", " + y;
+
+                IndexedPngDecoder decoder = new IndexedPngDecoder(new ByteArrayInputStream(png));
+                BufferedImage image;
+                try {
+                    assertTrue(decoder.readHeader(), name);
+                    image = decoder.decodeImage(null);
+                } finally {
+                    decoder.end();
+                }
+                assertEquals(new Point(x, y), decoder.getInvalidPixel(), name);
+                assertEquals(color, decoder.getInvalidPixelColor(), name);
+
+                // same result as the validation of ImageIO images
+                ImageHandler handler = new ImageHandler();
+                assertEquals(ImageHandler.ERR_IMAGE_MORE_THAN_16_COLORS, handler.setImage(decoder, image, false), name);
+                String message = handler.getLastErrorMessage(ImageHandler.ERR_IMAGE_MORE_THAN_16_COLORS);
+                ImageHandler reference = new ImageHandler();
+                assertEquals(ImageHandler.ERR_IMAGE_MORE_THAN_16_COLORS, reference.setImage(ImageIO.read(new ByteArrayInputStream(png))), name);
+                assertEquals(reference.getLastErrorMessage(ImageHandler.ERR_IMAGE_MORE_THAN_16_COLORS), message, name);
+
+                decoder = new IndexedPngDecoder(new ByteArrayInputStream(png));
+                try {
+                    assertTrue(decoder.readHeader(), name);
+                    decoder.decodeRows((row, data, offset) -> { });
+                } finally {
+                    decoder.end();
+                }
+                assertEquals(new Point(x, y), decoder.getInvalidPixel(), name + ", row by row");
+                assertEquals(color, decoder.getInvalidPixelColor(), name + ", row by row");
+            }
+        }
+    }
+
+    @Test
+    public void otherPngsAreLeftToImageIo() throws IOException {
+        BufferedImage rgb = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(rgb, "png", png);
+        assertFalse(new IndexedPngDecoder(new ByteArrayInputStream(png.toByteArray())).readHeader());
+        assertFalse(new IndexedPngDecoder(new ByteArrayInputStream(new byte[] { 1, 2, 3 })).readHeader());
+    }
+
+
+    // Both decoding modes (whole image, row by row) give the pixels and palette of ImageIO
+    private static void assertDecodedAsImageIo(byte[] png, String name) throws IOException {
+        BufferedImage expected = ImageIO.read(new ByteArrayInputStream(png));
+        byte[] expectedPixels = ExportModesTest.pixels(expected);
+        IndexColorModel expectedColors = (IndexColorModel) expected.getColorModel();
+
+        IndexedPngDecoder decoder = new IndexedPngDecoder(new ByteArrayInputStream(png));
+        BufferedImage decoded;
+        try {
+            assertTrue(decoder.readHeader(), name);
+            decoded = decoder.decodeImage(null);
+        } finally {
+            decoder.end();
+        }
+        assertArrayEquals(expectedPixels, ExportModesTest.pixels(decoded), name);
+        IndexColorModel colors = (IndexColorModel) decoded.getColorModel();
+        for (int i = 0; i < expectedColors.getMapSize(); i++) {
+            assertEquals(expectedColors.getRGB(i), colors.getRGB(i), name + ", palette entry " + i);
+        }
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y), decoded.getRGB(x, y), name + ", color of " + x + ", " + y);
+            }
+        }
+
+        int width = expected.getWidth();
+        byte[] rows = new byte[expectedPixels.length];
+        decoder = new IndexedPngDecoder(new ByteArrayInputStream(png));
+        try {
+            assertTrue(decoder.readHeader(), name);
+            decoder.decodeRows((y, data, offset) -> System.arraycopy(data, offset, rows, y * width, width));
+            assertNull(decoder.getInvalidPixel(), name);
+        } finally {
+            decoder.end();
+        }
+        assertArrayEquals(expectedPixels, rows, name + ", row by row");
+    }
+
+    // Color indexes 0 to 15 : with a small PLTE, some are past its last entry
+    private static byte[] randomPixels(int width, int height, long seed) {
+        Random random = new Random(seed * 31 + width * height);
+        byte[] pixels = new byte[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            // runs of the same index, so the filtered values are not all noise
+            pixels[i] = i % 7 < 3 && i > 0 ? pixels[i - 1] : (byte) random.nextInt(16);
+        }
+        return pixels;
+    }
+
+
+    // 8bpp indexed PNG, row y filtered with type y % 5, image data in IDAT chunks of idatSize bytes
+    private static byte[] png(int width, int height, byte[] pixels, int paletteSize, byte[] alphas, int idatSize) throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(file);
+        out.write(new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' });
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(width);
+        headerData.writeInt(height);
+        headerData.write(new byte[] { 8, 3, 0, 0, 0 }); // 8 bits, palette, deflate, adaptive filtering, no interlace
+        chunk(out, "IHDR", header.toByteArray(), 0, header.size());
+
+        byte[] palette = new byte[paletteSize * 3];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = (byte) (i * 47 + 13);
+        }
+        chunk(out, "PLTE", palette, 0, palette.length);
+        if (alphas != null) {
+            chunk(out, "tRNS", alphas, 0, alphas.length);
+        }
+
+        byte[] filtered = new byte[(width + 1) * height];
+        for (int y = 0; y < height; y++) {
+            filterRow(pixels, y, width, y % 5, filtered, y * (width + 1));
+        }
+        Deflater deflater = new Deflater();
+        deflater.setInput(filtered);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            compressed.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+
+        byte[] data = compressed.toByteArray();
+        for (int offset = 0; offset < data.length; offset += idatSize) {
+            chunk(out, "IDAT", data, offset, Math.min(idatSize, data.length - offset));
+        }
+        chunk(out, "IEND", new byte[0], 0, 0);
+        return file.toByteArray();
+    }
+
+    private static void filterRow(byte[] pixels, int y, int width, int type, byte[] dst, int offset) {
+        dst[offset] = (byte) type;
+        for (int x = 0; x < width; x++) {
+            int raw = pixels[y * width + x] & 0xFF;
+            int left = x > 0 ? pixels[y * width + x - 1] & 0xFF : 0;
+            int up = y > 0 ? pixels[(y - 1) * width + x] & 0xFF : 0;
+            int upLeft = x > 0 && y > 0 ? pixels[(y - 1) * width + x - 1] & 0xFF : 0;
+            int predictor;
+            switch (type) {
+                case 1:  predictor = left; break;
+                case 2:  predictor = up; break;
+                case 3:  predictor = (left + up) / 2; break;
+                case 4:  predictor = paeth(left, up, upLeft); break;
+                default: predictor = 0;
+            }
+            dst[offset + 1 + x] = (byte) (raw - predictor);
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        return pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+    }
+
+    private static void chunk(DataOutputStream out, String type, byte[] data, int offset, int length) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, offset, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, offset, length);
+        out.writeInt((int) crc.getValue());
+    }
+}
@@ -0,0 +1,166 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Adler32;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+
+// PNG written by IndexedPngEncoder, read back by ImageIO : same pixels, same palette.
+// The larger sizes are split in several deflate blocks (dictionary, combined adler32).
+public class IndexedPngEncoderTest {
+
+    private static final int[][] SIZES = { { 1, 1 }, { 13, 7 }, { 300, 200 }, { 1000, 700 }, { 2049, 300 } };
+    private static final int[] THREADS = { 1, 4 };
+    private static final int[] FILTERS = { IndexedPngEncoder.FILTER_NONE, IndexedPngEncoder.FILTER_ADAPTIVE };
+
+
+    @Test
+    public void imageIoReadsTheWrittenImages() throws IOException {
+        for (int[] size : SIZES) {
+            for (boolean smooth : new boolean[] { false, true }) {
+                BufferedImage image = createImage(size[0], size[1], smooth, palette16(), 7);
+                for (int threads : THREADS) {
+                    for (int filter : FILTERS) {
+                        String name = size[0] + "x" + size[1] + (smooth ? " smooth" : " noise")
+                            + ", " + threads + " threads, filter " + filter;
+                        BufferedImage read = readBack(write(image, threads, filter));
+                        assertSameImage(image, read, name);
+                    }
+                }
+            }
+        }
+    }
+
+    // 256 colors palette with transparent colors, like the exported ones : PLTE and tRNS
+    @Test
+    public void exportPaletteWithTransparency() throws IOException {
+        byte[] reds = new byte[256], greens = new byte[256], blues = new byte[256], alphas = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            reds[i] = (byte) (i * 15);
+            greens[i] = (byte) (i * 7);
+            blues[i] = (byte) (255 - i * 3);
+            alphas[i] = (byte) (i % 16 == 0 ? 0 : i == 5 ? 128 : 255);
+        }
+        IndexColorModel colorModel = new IndexColorModel(8, 256, reds, greens, blues, alphas);
+        BufferedImage image = createImage(517, 93, false, colorModel, 11);
+
+        for (int threads : THREADS) {
+            assertSameImage(image, readBack(write(image, threads, IndexedPngEncoder.FILTER_ADAPTIVE)), "tRNS, " + threads + " threads");
+        }
+    }
+
+    // --level : every level gives the same image, the higher ones a smaller file
+    @Test
+    public void compressionLevels() throws IOException {
+        BufferedImage image = createImage(1000, 700, true, palette16(), 13);
+        int storedSize = 0;
+        for (int level : new int[] { 0, 1, IndexedPngEncoder.DEFAULT_COMPRESSION_LEVEL, 9 }) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new IndexedPngEncoder().setThreads(4).setCompressionLevel(level).write(image, out);
+            assertSameImage(image, readBack(out.toByteArray()), "level " + level);
+            if (level == 0) {
+                storedSize = out.size();
+            } else {
+                assertTrue(out.size() < storedSize, "level " + level);
+            }
+        }
+    }
+
+    // The streaming writer gives the same file as write
+    @Test
+    public void rowWriterMatchesWrite() throws IOException {
+        BufferedImage image = createImage(1000, 700, true, palette16(), 13);
+        for (int threads : THREADS) {
+            IndexedPngEncoder encoder = new IndexedPngEncoder().setThreads(threads);
+            byte[] pixels = ExportModesTest.pixels(image);
+
+            ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+            try (IndexedPngEncoder.RowWriter rows = encoder.start(streamed, image.getWidth(), image.getHeight(),
+                                                                  (IndexColorModel) image.getColorModel())) {
+                for (int y = 0; y < image.getHeight(); y++) {
+                    rows.writeRow(pixels, y * image.getWidth());
+                }
+                rows.finish();
+            }
+
+            assertArrayEquals(write(image, threads, IndexedPngEncoder.DEFAULT_FILTER), streamed.toByteArray(), threads + " threads");
+        }
+    }
+
+    @Test
+    public void adler32CombineMatchesAdler32() {
+        Random random = new Random(17);
+        for (int i = 0; i < 200; i++) {
+            byte[] data = new byte[random.nextInt(200000) + 1];
+            if (i % 2 == 0) {
+                random.nextBytes(data);
+            } else {
+                Arrays.fill(data, (byte) 0xFF); // largest sums
+            }
+            int split = random.nextInt(data.length + 1);
+
+            Adler32 first = new Adler32();
+            first.update(data, 0, split);
+            Adler32 second = new Adler32();
+            second.update(data, split, data.length - split);
+            Adler32 whole = new Adler32();
+            whole.update(data);
+
+            assertEquals(whole.getValue(), IndexedPngEncoder.adler32Combine(first.getValue(), second.getValue(), data.length - split),
+                "length " + data.length + ", split at " + split);
+        }
+    }
+
+
+    private static byte[] write(BufferedImage image, int threads, int filter) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new IndexedPngEncoder().setThreads(threads).setFilter(filter).write(image, out);
+        return out.toByteArray();
+    }
+
+    private static BufferedImage readBack(byte[] png) throws IOException {
+        BufferedImage read = ImageIO.read(new ByteArrayInputStream(png));
+        assertTrue(read != null && read.getColorModel() instanceof IndexColorModel, "indexed PNG expected");
+        return read;
+    }
+
+    private static void assertSameImage(BufferedImage expected, BufferedImage actual, String name) {
+        assertEquals(expected.getWidth(), actual.getWidth(), name);
+        assertEquals(expected.getHeight(), actual.getHeight(), name);
+        assertArrayEquals(ExportModesTest.pixels(expected), ExportModesTest.pixels(actual), name);
+
+        IndexColorModel expectedColors = (IndexColorModel) expected.getColorModel();
+        IndexColorModel actualColors = (IndexColorModel) actual.getColorModel();
+        assertTrue(actualColors.getMapSize() >= expectedColors.getMapSize(), name);
+        for (int i = 0; i < expectedColors.getMapSize(); i++) {
+            assertEquals(expectedColors.getRGB(i), actualColors.getRGB(i), name + ", palette entry " + i);
+        }
+    }
+
+    private static IndexColorModel palette16() {
+        return (IndexColorModel) ExportModesTest.randomImage(1, 1, 0).getColorModel();
+    }
+
+    // Random pixels (noise), or runs of slowly changing values so the adaptive filter picks Sub / Up
+    private static BufferedImage createImage(int width, int height, boolean smooth, IndexColorModel colorModel, long seed) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, colorModel);
+        int colors = colorModel.getMapSize();
+        Random random = new Random(seed);
+        byte[] row = new byte[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                row[x] = (byte) (smooth ? ((x / 5 + y / 3) % colors) : random.nextInt(colors));
+            }
+            image.getRaster().setDataElements(0, y, width, 1, row);
+        }
+        return image;
+    }
+}
@@ -0,0 +1,395 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// .msk files : binary format written / read back in every encoding, rejected files, memory-mapped
+// masks, and the masks saved with Java serialization by the first versions.
+public class MaskFileTest {
+
+    // 5x3 mask saved by the first version of the tool (Mask holding a List<Tile>), tile (x, y) has
+    // palette (x + 2y) % 4 and priority (x * y) % 2
+    private static final String LEGACY_MASK =
+        "rO0ABXNyAARNYXNrs5xiGlMHFr0CAANJAAZoZWlnaHRJAAV3aWR0aEwABXRpbGVzdAAQTGphdmEvdXRpbC9MaXN0O3hwAAAAAwAAAAVz"
+        + "cgATamF2YS51dGlsLkFycmF5TGlzdHiB0h2Zx2GdAwABSQAEc2l6ZXhwAAAAD3cEAAAAD3NyAARUaWxlbbgX6+TtgZICAARJAAdwYWxl"
+        + "dHRlSQAIcHJpb3JpdHlJAAF4SQABeXhwAAAAAAAAAAAAAAAAAAAAAHNxAH4ABQAAAAEAAAAAAAAAAQAAAABzcQB+AAUAAAACAAAAAAAA"
+        + "AAIAAAAAc3EAfgAFAAAAAwAAAAAAAAADAAAAAHNxAH4ABQAAAAAAAAAAAAAABAAAAABzcQB+AAUAAAACAAAAAAAAAAAAAAABc3EAfgAF"
+        + "AAAAAwAAAAEAAAABAAAAAXNxAH4ABQAAAAAAAAAAAAAAAgAAAAFzcQB+AAUAAAABAAAAAQAAAAMAAAABc3EAfgAFAAAAAgAAAAAAAAAE"
+        + "AAAAAXNxAH4ABQAAAAAAAAAAAAAAAAAAAAJzcQB+AAUAAAABAAAAAAAAAAEAAAACc3EAfgAFAAAAAgAAAAAAAAACAAAAAnNxAH4ABQAA"
+        + "AAMAAAAAAAAAAwAAAAJzcQB+AAUAAAAAAAAAAAAAAAQAAAACeA==";
+
+    private static final int[][] SIZES = { { 0, 0 }, { 1, 1 }, { 40, 28 }, { 1, 500 }, { 333, 77 } };
+    private static final int[] ENCODINGS = { MaskFile.ENCODING_RAW, MaskFile.ENCODING_RLE, MaskFile.ENCODING_RLE_DEFLATE };
+    private static final String[] ENCODING_NAMES = { "raw", "rle", "deflate" };
+
+    @TempDir
+    File directory;
+
+
+    @Test
+    public void writeThenRead() throws IOException {
+        for (int[] size : SIZES) {
+            Mask mask = randomMask(size[0], size[1], size[0] * 31 + size[1]);
+            for (int encoding : ENCODINGS) {
+                File file = new File(directory, size[0] + "x" + size[1] + "_" + encoding + ".msk");
+                MaskFile.write(mask, file, encoding);
+
+                if (encoding == MaskFile.ENCODING_RAW) {
+                    assertEquals(MaskFile.HEADER_SIZE + size[0] * size[1], file.length());
+                }
+                assertSameTiles(mask, MaskFile.read(file), size[0] + "x" + size[1] + ", encoding " + encoding);
+                assertFalse(MaskFile.isLegacy(file));
+            }
+        }
+    }
+
+    @Test
+    public void uniformMask() throws IOException {
+        Mask mask = new Mask(1000, 700);
+        mask.getTileStore().fill(0, 1000 * 700, TileStore.pack(2, 1));
+        for (int encoding : ENCODINGS) {
+            File file = new File(directory, "uniform_" + encoding + ".msk");
+            MaskFile.write(mask, file, encoding);
+            assertSameTiles(mask, MaskFile.read(file), "encoding " + encoding);
+        }
+
+        // a single run : 700000 as a 3 bytes varint, then the tile
+        File file = new File(directory, "uniform.msk");
+        MaskFile.write(mask, file, MaskFile.ENCODING_RLE);
+        assertEquals(MaskFile.HEADER_SIZE + 3 + 1, file.length());
+    }
+
+    // Runs of 1 to 3 varint bytes, around the 127/128 and 16383/16384 limits
+    @Test
+    public void runsAroundVarIntLimits() throws IOException {
+        int[] lengths = { 1, 127, 128, 129, 1, 255, 256, 16383, 16384, 16385, 2, 126 };
+        int total = 0;
+        for (int length : lengths) {
+            total += length;
+        }
+        Mask mask = new Mask(total, 1);
+        int index = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            mask.getTileStore().fill(index, index + lengths[i], TileStore.pack(i % 4, (i / 4) % 2));
+            index += lengths[i];
+        }
+
+        File file = new File(directory, "runs.msk");
+        MaskFile.write(mask, file, MaskFile.ENCODING_RLE);
+        long runBytes = 0;
+        for (int length : lengths) {
+            runBytes += (length < 128 ? 1 : length < 16384 ? 2 : 3) + 1;
+        }
+        assertEquals(MaskFile.HEADER_SIZE + runBytes, file.length());
+        assertSameTiles(mask, MaskFile.read(file), "rle");
+
+        MaskFile.write(mask, file, MaskFile.ENCODING_RLE_DEFLATE);
+        assertSameTiles(mask, MaskFile.read(file), "deflate");
+    }
+
+    @Test
+    public void header() throws IOException {
+        File file = new File(directory, "header.msk");
+        MaskFile.write(new Mask(300, 2), file, MaskFile.ENCODING_RAW);
+
+        ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        assertEquals(0x504D534B, header.getInt());
+        assertEquals(MaskFile.VERSION, header.get());
+        assertEquals(MaskFile.ENCODING_RAW, header.get());
+        assertEquals(0, header.getShort());
+        assertEquals(300, header.getInt());
+        assertEquals(2, header.getInt());
+    }
+
+    @Test
+    public void badMagicIsRejected() throws IOException {
+        byte[] data = write(randomMask(10, 10, 1));
+        data[0] = 'X';
+        assertThrows(IOException.class, () -> MaskFile.read(save(data)));
+
+        byte[] text = "this is not a mask file, just some text".getBytes("US-ASCII");
+        assertThrows(IOException.class, () -> MaskFile.read(save(text)));
+    }
+
+    @Test
+    public void unsupportedVersionIsRejected() throws IOException {
+        byte[] data = write(randomMask(10, 10, 2));
+        data[4] = (byte) (MaskFile.VERSION + 1);
+        IOException e = assertThrows(IOException.class, () -> MaskFile.read(save(data)));
+        assertTrue(e.getMessage().contains("version"), e.getMessage());
+    }
+
+    @Test
+    public void unknownEncodingIsRejected() throws IOException {
+        byte[] data = write(randomMask(10, 10, 3));
+        data[5] = 99;
+        assertThrows(IOException.class, () -> MaskFile.read(save(data)));
+    }
+
+    @Test
+    public void invalidSizeIsRejected() throws IOException {
+        byte[] data = write(randomMask(10, 10, 4));
+        ByteBuffer.wrap(data).putInt(8, -1);
+        assertThrows(IOException.class, () -> MaskFile.read(save(data)));
+    }
+
+    // Every cut of the file, in the header or in the tiles, is an error
+    @Test
+    public void truncatedFilesAreRejected() throws IOException {
+        for (int encoding : ENCODINGS) {
+            byte[] data = write(randomMask(7, 5, 5), encoding);
+            for (int length = 0; length < data.length; length++) {
+                File file = save(Arrays.copyOf(data, length));
+                assertThrows(IOException.class, () -> MaskFile.read(file), "encoding " + encoding + ", file cut at " + length + " bytes");
+            }
+        }
+    }
+
+    // Run lengths going past the last tile, empty runs and too long varints
+    @Test
+    public void corruptedRunsAreRejected() throws IOException {
+        byte[][] runs = {
+            { 17, 0x10 },                                               // 17 tiles in a 4x4 mask
+            { 10, 0x10, 7, 0x20 },                                      // 10 + 7
+            { (byte) 0x80, 0x01, 0x30 },                                // 128
+            { 0, 0x10, 16, 0x10 },                                      // empty run
+            { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F, 0x10 }, // -1 as a 5 bytes varint
+            { (byte) 0x81, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01, 0x10 } // more than 5 bytes
+        };
+        for (byte[] run : runs) {
+            File rle = save(concat(header(4, 4, MaskFile.ENCODING_RLE), run));
+            assertThrows(IOException.class, () -> MaskFile.read(rle), "rle " + Arrays.toString(run));
+
+            File deflate = save(concat(header(4, 4, MaskFile.ENCODING_RLE_DEFLATE), deflate(run)));
+            assertThrows(IOException.class, () -> MaskFile.read(deflate), "deflate " + Arrays.toString(run));
+        }
+
+        // deflate : data after the last tile, wrong checksum
+        File extra = save(concat(header(4, 4, MaskFile.ENCODING_RLE_DEFLATE), deflate(new byte[] { 16, 0x10, 1, 0x10 })));
+        assertThrows(IOException.class, () -> MaskFile.read(extra), "deflate, data after the last tile");
+        byte[] data = concat(header(4, 4, MaskFile.ENCODING_RLE_DEFLATE), deflate(new byte[] { 16, 0x10 }));
+        data[data.length - 1] ^= 1;
+        assertThrows(IOException.class, () -> MaskFile.read(save(data)), "deflate, wrong adler32");
+
+        // valid runs
+        File valid = save(concat(header(4, 4, MaskFile.ENCODING_RLE), new byte[] { 10, 0x10, 6, (byte) 0xA0 }));
+        Mask mask = MaskFile.read(valid);
+        assertEquals(1, mask.getTilePalette(1, 2));
+        assertEquals(2, mask.getTilePalette(2, 2));
+        assertEquals(1, mask.getTilePriority(3, 3));
+    }
+
+
+    // RAW files are mapped : edits of a writable mask go to the file
+    @Test
+    public void mappedRawFile() throws IOException {
+        Mask mask = randomMask(200, 90, 8);
+        File file = new File(directory, "mapped.msk");
+        MaskFile.write(mask, file, MaskFile.ENCODING_RAW);
+
+        Mask readOnly = MaskFile.readMapped(file, false);
+        assertTrue(readOnly.isMapped());
+        assertSameTiles(mask, readOnly, "read only");
+
+        Mask writable = MaskFile.readMapped(file, true);
+        writable.setTileProperties(199, 89, 3, 1);
+        mask.setTileProperties(199, 89, 3, 1);
+        MaskFile.write(writable, file); // flush only
+        assertSameTiles(mask, MaskFile.read(file), "edited");
+
+        File copy = new File(directory, "copy.msk");
+        MaskFile.write(writable, copy);
+        assertSameTiles(mask, MaskFile.read(copy), "copy");
+    }
+
+    @Test
+    public void createMapped() throws IOException {
+        File file = new File(directory, "created.msk");
+        Mask mask = MaskFile.createMapped(file, 30, 20);
+        assertEquals(MaskFile.HEADER_SIZE + 30 * 20, file.length());
+        mask.setTileProperties(4, 5, 2, 1);
+        mask.flush();
+
+        Mask read = MaskFile.read(file);
+        assertEquals(2, read.getTilePalette(4, 5));
+        assertEquals(1, read.getTilePriority(4, 5));
+        assertEquals(0, read.getPackedTile(5, 5));
+    }
+
+    // Read only masks of the other encodings are decoded in memory (batch modes) : no temporary file
+    // is created. Writable ones are decoded into a temporary mapped file.
+    @Test
+    public void mappedOtherEncodings() throws IOException {
+        Mask mask = randomMask(120, 70, 9);
+        for (int encoding : new int[] { MaskFile.ENCODING_RLE, MaskFile.ENCODING_RLE_DEFLATE }) {
+            File file = new File(directory, "encoded_" + encoding + ".msk");
+            MaskFile.write(mask, file, encoding);
+
+            int tempFiles = countTempMaskFiles();
+            Mask readOnly = MaskFile.readMapped(file, false);
+            assertFalse(readOnly.isMapped());
+            assertSameTiles(mask, readOnly, "read only, encoding " + encoding);
+            assertEquals(tempFiles, countTempMaskFiles(), "temporary files, encoding " + encoding);
+
+            Mask writable = MaskFile.readMapped(file, true);
+            assertTrue(writable.isMapped());
+            assertSameTiles(mask, writable, "writable, encoding " + encoding);
+        }
+    }
+
+
+    // --convert rewrites a mask (binary or legacy) in each encoding
+    @Test
+    public void convertToEachEncoding() throws IOException {
+        Mask mask = randomMask(100, 60, 7);
+        File binary = new File(directory, "binary.msk");
+        MaskFile.write(mask, binary, MaskFile.ENCODING_RAW);
+        File legacy = save(Base64.getDecoder().decode(LEGACY_MASK));
+
+        for (int i = 0; i < ENCODINGS.length; i++) {
+            File output = new File(directory, "converted_" + ENCODING_NAMES[i] + ".msk");
+            assertEquals(0, PngPalettePriorityEditor.convertMask(new String[] {
+                "--convert", binary.getPath(), output.getPath(), "--encoding", ENCODING_NAMES[i] }));
+            assertEquals(ENCODINGS[i], Files.readAllBytes(output.toPath())[5]);
+            assertSameTiles(mask, MaskFile.read(output), ENCODING_NAMES[i]);
+
+            File fromLegacy = new File(directory, "legacy_" + ENCODING_NAMES[i] + ".msk");
+            assertEquals(0, PngPalettePriorityEditor.convertMask(new String[] {
+                "--convert", legacy.getPath(), fromLegacy.getPath(), "--encoding", ENCODING_NAMES[i].toUpperCase() }));
+            assertSameTiles(MaskFile.read(legacy), MaskFile.read(fromLegacy), "legacy, " + ENCODING_NAMES[i]);
+        }
+
+        File output = new File(directory, "converted_default.msk");
+        assertEquals(0, PngPalettePriorityEditor.convertMask(new String[] { "--convert", binary.getPath(), output.getPath() }));
+        assertEquals(MaskFile.DEFAULT_ENCODING, Files.readAllBytes(output.toPath())[5]);
+
+        assertEquals(1, PngPalettePriorityEditor.convertMask(new String[] {
+            "--convert", binary.getPath(), output.getPath(), "--encoding", "zip" }));
+        assertEquals(1, PngPalettePriorityEditor.convertMask(new String[] {
+            "--convert", binary.getPath(), output.getPath(), "--encoding" }));
+        assertEquals(1, PngPalettePriorityEditor.convertMask(new String[] {
+            "--convert", new File(directory, "missing.msk").getPath(), output.getPath() }));
+    }
+
+
+    @Test
+    public void legacyMaskIsRead() throws IOException {
+        File file = save(Base64.getDecoder().decode(LEGACY_MASK));
+        assertTrue(MaskFile.isLegacy(file));
+
+        Mask mask = MaskFile.read(file);
+        assertEquals(5, mask.getWidth());
+        assertEquals(3, mask.getHeight());
+        for (int y = 0; y < 3; y++) {
+            for (int x = 0; x < 5; x++) {
+                assertEquals((x + 2 * y) % 4, mask.getTilePalette(x, y), "palette of " + x + ", " + y);
+                assertEquals((x * y) % 2, mask.getTilePriority(x, y), "priority of " + x + ", " + y);
+            }
+        }
+
+        // saved back in the binary format
+        File converted = new File(directory, "converted.msk");
+        MaskFile.write(mask, converted);
+        assertFalse(MaskFile.isLegacy(converted));
+        assertSameTiles(mask, MaskFile.read(converted), "converted");
+    }
+
+    // Masks serialized by this version still use the legacy form, readable by the first versions
+    @Test
+    public void serializedMaskIsRead() throws IOException {
+        Mask mask = randomMask(37, 11, 6);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(mask);
+        }
+        assertSameTiles(mask, MaskFile.read(save(bytes.toByteArray())), "serialized");
+    }
+
+    // The UIDs are those computed for the classes of the first versions : changing them breaks the old files
+    @Test
+    public void serialVersionUidsArePinned() {
+        assertEquals(-5504416779351943491L, ObjectStreamClass.lookup(Mask.class).getSerialVersionUID());
+        assertEquals(7906095447774429586L, ObjectStreamClass.lookup(Tile.class).getSerialVersionUID());
+    }
+
+
+    static Mask randomMask(int width, int height, long seed) {
+        Mask mask = new Mask(width, height);
+        Random random = new Random(seed);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                mask.setTileProperties(x, y, random.nextInt(4), random.nextInt(2));
+            }
+        }
+        return mask;
+    }
+
+    static byte[] tiles(Mask mask) {
+        byte[] tiles = new byte[mask.getWidth() * mask.getHeight()];
+        mask.getTileStore().get(0, tiles, 0, tiles.length);
+        return tiles;
+    }
+
+    static void assertSameTiles(Mask expected, Mask actual, String name) {
+        assertEquals(expected.getWidth(), actual.getWidth(), name);
+        assertEquals(expected.getHeight(), actual.getHeight(), name);
+        assertArrayEquals(tiles(expected), tiles(actual), name);
+    }
+
+    private byte[] write(Mask mask) throws IOException {
+        return write(mask, MaskFile.ENCODING_RAW);
+    }
+
+    private byte[] write(Mask mask, int encoding) throws IOException {
+        File file = File.createTempFile("mask", ".msk", directory);
+        MaskFile.write(mask, file, encoding);
+        return Files.readAllBytes(file.toPath());
+    }
+
+    private static int countTempMaskFiles() {
+        File[] files = new File(System.getProperty("java.io.tmpdir")).listFiles((dir, name) -> name.startsWith("pppe4sgdk-"));
+        return files != null ? files.length : 0;
+    }
+
+    private static byte[] header(int width, int height, int encoding) {
+        ByteBuffer header = MaskFile.createHeader(width, height, encoding);
+        byte[] bytes = new byte[header.remaining()];
+        header.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] deflate(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bytes)) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+
+    private File save(byte[] data) throws IOException {
+        File file = File.createTempFile("mask", ".msk", directory);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+}
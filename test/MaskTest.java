@@ -0,0 +1,122 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+// Bulk mask operations : same result as a loop over the tiles, and a single undo step
+// giving back the exact packed bytes.
+public class MaskTest {
+
+    private static final int[][] SIZES = { { 1, 1 }, { 7, 5 }, { 63, 4 }, { 64, 3 }, { 65, 9 }, { 130, 17 } };
+
+
+    @Test
+    public void applySelectionMatchesTileLoop() {
+        Random random = new Random(1);
+        for (int[] size : SIZES) {
+            int width = size[0], height = size[1];
+            for (int step = 0; step < 20; step++) {
+                Mask mask = MaskFileTest.randomMask(width, height, step);
+                Mask expected = new Mask(mask);
+                TileSelection selection = randomSelection(random, width, height);
+                int andMask = random.nextInt(256) & (TileStore.PALETTE_BITS | TileStore.PRIORITY_BITS);
+                int orMask = random.nextInt(256) & (TileStore.PALETTE_BITS | TileStore.PRIORITY_BITS);
+
+                mask.applySelection(selection, andMask, orMask, null);
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        if (selection.contains(x, y)) {
+                            int packed = (expected.getPackedTile(x, y) & andMask) | orMask;
+                            expected.setTileProperties(x, y, TileStore.unpackPalette(packed), TileStore.unpackPriority(packed));
+                        }
+                    }
+                }
+                assertArrayEquals(UndoHistoryTest.packedBytes(expected), UndoHistoryTest.packedBytes(mask), width + "x" + height + " step " + step);
+            }
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> new Mask(8, 8).applySelection(new TileSelection(8, 9), 0, 0, null));
+    }
+
+    @Test
+    public void setPaletteAndPriorityKeepTheOtherField() {
+        Mask mask = MaskFileTest.randomMask(65, 9, 3);
+        Mask original = new Mask(mask);
+        TileSelection selection = randomSelection(new Random(4), 65, 9);
+
+        mask.setPalette(selection, 2, null);
+        mask.setPriority(selection, 1, null);
+        for (int y = 0; y < 9; y++) {
+            for (int x = 0; x < 65; x++) {
+                boolean selected = selection.contains(x, y);
+                assertEquals(selected ? 2 : original.getTilePalette(x, y), mask.getTilePalette(x, y));
+                assertEquals(selected ? 1 : original.getTilePriority(x, y), mask.getTilePriority(x, y));
+            }
+        }
+
+        Mask filled = new Mask(10, 6);
+        filled.fillRect(new Rectangle(-2, 3, 5, 10), 3, 1, null);
+        for (int y = 0; y < 6; y++) {
+            for (int x = 0; x < 10; x++) {
+                boolean inside = x < 3 && y >= 3;
+                assertEquals(inside ? TileStore.pack(3, 1) : 0, filled.getPackedTile(x, y), x + "," + y);
+            }
+        }
+    }
+
+    // applyRect, fillSelection and setPalette are each one undo step, restoring the exact bytes
+    @Test
+    public void bulkOperationsUndoRedo() {
+        Random random = new Random(5);
+        for (int[] size : SIZES) {
+            int width = size[0], height = size[1];
+            Mask mask = MaskFileTest.randomMask(width, height, 6);
+            UndoHistory history = new UndoHistory();
+
+            List<byte[]> states = new ArrayList<>();
+            states.add(UndoHistoryTest.packedBytes(mask));
+            for (int i = 1; i <= 12; i++) {
+                MaskEdit edit = new MaskEdit(mask);
+                TileSelection selection = randomSelection(random, width, height);
+                switch (i % 3) {
+                    case 0 : mask.applyRect(new Rectangle(random.nextInt(width + 2) - 2, random.nextInt(height + 2) - 2, random.nextInt(width + 2) + 1, random.nextInt(height + 2) + 1),
+                                            random.nextInt(256), TileStore.pack(random.nextInt(4), random.nextInt(2)), edit); break;
+                    case 1 : mask.fillSelection(selection, random.nextInt(4), random.nextInt(2), edit); break;
+                    default : mask.setPalette(selection, random.nextInt(4), edit); break;
+                }
+                if (edit.finish()) {
+                    history.push(edit);
+                    states.add(UndoHistoryTest.packedBytes(mask));
+                }
+            }
+            assertEquals(states.size() - 1, history.getUndoCount());
+
+            for (int i = states.size() - 2; i >= 0; i--) {
+                history.undo();
+                assertArrayEquals(states.get(i), UndoHistoryTest.packedBytes(mask), width + "x" + height + " undo to " + i);
+            }
+            for (int i = 1; i < states.size(); i++) {
+                history.redo();
+                assertArrayEquals(states.get(i), UndoHistoryTest.packedBytes(mask), width + "x" + height + " redo to " + i);
+            }
+        }
+    }
+
+
+    private static TileSelection randomSelection(Random random, int width, int height) {
+        TileSelection selection = new TileSelection(width, height);
+        for (int i = 0; i < 4; i++) {
+            selection.addRect(new Rectangle(random.nextInt(width), random.nextInt(height), random.nextInt(width) + 1, random.nextInt(height) + 1));
+        }
+        for (int i = 0; i < width * height / 8; i++) {
+            selection.add(random.nextInt(width), random.nextInt(height));
+        }
+        selection.subtractRect(new Rectangle(random.nextInt(width), random.nextInt(height), random.nextInt(width) + 1, 1));
+        return selection;
+    }
+}
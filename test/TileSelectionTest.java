@@ -0,0 +1,196 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+// Bitmap tile selection checked against a boolean[][] : count and bounds kept up to date,
+// rectangles and selections combined across the 64-bit word edges, on any mask width.
+public class TileSelectionTest {
+
+    // widths around the 64 tiles of a word, and rows spanning several words
+    private static final int[][] SIZES = { { 1, 1 }, { 7, 5 }, { 63, 4 }, { 64, 3 }, { 65, 3 }, { 127, 2 }, { 130, 5 }, { 200, 7 } };
+
+
+    @Test
+    public void rectanglesMatchReference() {
+        Random random = new Random(1);
+        for (int[] size : SIZES) {
+            int width = size[0], height = size[1];
+            TileSelection selection = new TileSelection(width, height);
+            boolean[][] reference = new boolean[height][width];
+
+            for (int step = 0; step < 200; step++) {
+                Rectangle r = randomRect(random, width, height);
+                boolean add = step < 5 || random.nextInt(3) > 0;
+                if (add) {
+                    selection.addRect(r);
+                } else {
+                    selection.subtractRect(r);
+                }
+                apply(reference, r, add);
+                assertSelection(reference, selection, width + "x" + height + " step " + step);
+            }
+        }
+    }
+
+    // full rows and rectangles starting or ending exactly on a word edge
+    @Test
+    public void wordEdges() {
+        for (int[] size : SIZES) {
+            int width = size[0], height = size[1];
+            int tiles = width * height;
+            for (int edge = 64; edge <= tiles; edge += 64) {
+                for (int from : new int[] { edge - 64, edge - 1, edge }) {
+                    TileSelection selection = new TileSelection(width, height);
+                    boolean[][] reference = new boolean[height][width];
+                    // tiles [from, edge] one at a time
+                    for (int i = from; i <= edge && i < tiles; i++) {
+                        selection.add(i % width, i / width);
+                        reference[i / width][i % width] = true;
+                    }
+                    assertSelection(reference, selection, width + "x" + height + " from " + from);
+                }
+            }
+
+            TileSelection selection = new TileSelection(width, height);
+            boolean[][] reference = new boolean[height][width];
+            for (int y = 0; y < height; y += 2) {
+                Rectangle row = new Rectangle(0, y, width, 1);
+                selection.addRect(row);
+                apply(reference, row, true);
+            }
+            assertSelection(reference, selection, width + "x" + height + " even rows");
+        }
+    }
+
+    @Test
+    public void combineMatchesReference() {
+        Random random = new Random(2);
+        for (int[] size : SIZES) {
+            int width = size[0], height = size[1];
+            for (int step = 0; step < 50; step++) {
+                TileSelection a = new TileSelection(width, height);
+                TileSelection b = new TileSelection(width, height);
+                boolean[][] ra = new boolean[height][width];
+                boolean[][] rb = new boolean[height][width];
+                for (int i = 0; i < 3; i++) {
+                    Rectangle r = randomRect(random, width, height);
+                    a.addRect(r);
+                    apply(ra, r, true);
+                    r = randomRect(random, width, height);
+                    b.addRect(r);
+                    apply(rb, r, true);
+                }
+
+                boolean subtract = random.nextBoolean();
+                if (subtract) {
+                    a.subtract(b);
+                } else {
+                    a.add(b);
+                }
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        ra[y][x] = subtract ? ra[y][x] && !rb[y][x] : ra[y][x] || rb[y][x];
+                    }
+                }
+                assertSelection(ra, a, width + "x" + height + (subtract ? " subtract" : " add") + " step " + step);
+                assertSelection(rb, b, "other selection unchanged");
+            }
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> new TileSelection(64, 2).add(new TileSelection(65, 2)));
+        assertThrows(IllegalArgumentException.class, () -> new TileSelection(64, 2).subtract(new TileSelection(64, 3)));
+    }
+
+    @Test
+    public void clear() {
+        TileSelection selection = new TileSelection(130, 5);
+        selection.addRect(new Rectangle(60, 1, 10, 3));
+        selection.subtractRect(new Rectangle(62, 2, 2, 1));
+        selection.clear();
+        assertSelection(new boolean[5][130], selection, "cleared");
+
+        // bounds start again from the next rectangle
+        selection.addRect(new Rectangle(3, 4, 2, 1));
+        assertEquals(new Rectangle(3, 4, 2, 1), selection.getBounds());
+        assertTrue(selection.isRectangle());
+    }
+
+    @Test
+    public void outsideTilesAreIgnored() {
+        TileSelection selection = new TileSelection(65, 3);
+        selection.addRect(new Rectangle(-10, -10, 5, 5));
+        selection.add(65, 0);
+        selection.add(0, 3);
+        assertTrue(selection.isEmpty());
+        assertNull(selection.first());
+
+        selection.addRect(new Rectangle(60, 2, 100, 100));
+        assertEquals(5, selection.size());
+        assertEquals(new Rectangle(60, 2, 5, 1), selection.getBounds());
+        assertFalse(selection.contains(-1, 2));
+        assertFalse(selection.contains(65, 2));
+
+        TileSelection empty = new TileSelection(0, 0);
+        empty.addRect(new Rectangle(0, 0, 10, 10));
+        assertTrue(empty.isEmpty());
+        assertEquals(-1, empty.nextIndex(0));
+    }
+
+
+    private static Rectangle randomRect(Random random, int width, int height) {
+        int x = random.nextInt(width + 4) - 2;
+        int y = random.nextInt(height + 4) - 2;
+        return new Rectangle(x, y, random.nextInt(width + 1) + 1, random.nextInt(height + 1) + 1);
+    }
+
+    private static void apply(boolean[][] reference, Rectangle r, boolean selected) {
+        for (int y = Math.max(r.y, 0); y < Math.min(r.y + r.height, reference.length); y++) {
+            for (int x = Math.max(r.x, 0); x < Math.min(r.x + r.width, reference[y].length); x++) {
+                reference[y][x] = selected;
+            }
+        }
+    }
+
+    // contains, size, bounds, isRectangle, first and nextIndex against the reference
+    private static void assertSelection(boolean[][] reference, TileSelection selection, String message) {
+        int width = selection.getWidth();
+        int count = 0;
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
+        int expectedNext = -1;
+        for (int y = reference.length - 1; y >= 0; y--) {
+            for (int x = width - 1; x >= 0; x--) {
+                assertEquals(reference[y][x], selection.contains(x, y), message + " at " + x + "," + y);
+                if (reference[y][x]) {
+                    count++;
+                    minX = Math.min(minX, x);
+                    minY = Math.min(minY, y);
+                    maxX = Math.max(maxX, x);
+                    maxY = Math.max(maxY, y);
+                    expectedNext = y * width + x;
+                }
+            }
+        }
+
+        assertEquals(count, selection.size(), message + " size");
+        assertEquals(count == 0, selection.isEmpty(), message);
+        Rectangle bounds = count == 0 ? new Rectangle() : new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+        assertEquals(bounds, selection.getBounds(), message + " bounds");
+        assertEquals(count > 0 && count == bounds.width * bounds.height, selection.isRectangle(), message);
+        assertEquals(count == 0 ? null : new Point(expectedNext % width, expectedNext / width), selection.first(), message);
+
+        // walk the selection with nextIndex
+        int walked = 0;
+        for (int i = selection.nextIndex(0); i >= 0; i = selection.nextIndex(i + 1)) {
+            assertTrue(reference[i / width][i % width], message + " next index " + i);
+            walked++;
+        }
+        assertEquals(count, walked, message + " walk");
+    }
+}
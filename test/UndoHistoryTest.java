@@ -0,0 +1,199 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+// Undo history as tile deltas : undo/redo give back the exact packed bytes,
+// the memory budget drops the oldest edits, a new edit drops the redo history.
+public class UndoHistoryTest {
+
+    @Test
+    public void undoRedoRestoreExactBytes() {
+        Mask mask = MaskFileTest.randomMask(37, 23, 1);
+        UndoHistory history = new UndoHistory();
+        Random random = new Random(2);
+
+        List<byte[]> states = new ArrayList<>();
+        states.add(packedBytes(mask));
+        for (int step = 0; step < 20; step++) {
+            MaskEdit edit = new MaskEdit(mask);
+            if (step % 2 == 0) {
+                // rectangle partly outside of the mask
+                Rectangle area = new Rectangle(random.nextInt(40) - 5, random.nextInt(26) - 5, random.nextInt(15) + 1, random.nextInt(15) + 1);
+                edit.recordRect(area);
+                int palette = random.nextInt(4);
+                for (int y = Math.max(area.y, 0); y < Math.min(area.y + area.height, mask.getHeight()); y++) {
+                    for (int x = Math.max(area.x, 0); x < Math.min(area.x + area.width, mask.getWidth()); x++) {
+                        mask.setTileProperties(x, y, palette, mask.getTilePriority(x, y));
+                    }
+                }
+            } else {
+                // scattered tiles, some recorded and modified twice
+                for (int i = 0; i < 30; i++) {
+                    int x = random.nextInt(8), y = random.nextInt(8);
+                    edit.recordTile(x, y);
+                    mask.setTileProperties(x, y, random.nextInt(4), random.nextInt(2));
+                }
+            }
+            if (edit.finish()) {
+                history.push(edit);
+                states.add(packedBytes(mask));
+            }
+        }
+        assertEquals(states.size() - 1, history.getUndoCount());
+
+        for (int i = states.size() - 2; i >= 0; i--) {
+            assertTrue(history.undo() != null);
+            assertArrayEquals(states.get(i), packedBytes(mask), "undo to state " + i);
+        }
+        assertNull(history.undo());
+
+        for (int i = 1; i < states.size(); i++) {
+            assertTrue(history.redo() != null);
+            assertArrayEquals(states.get(i), packedBytes(mask), "redo to state " + i);
+        }
+        assertNull(history.redo());
+    }
+
+    @Test
+    public void unchangedTilesAreDropped() {
+        Mask mask = new Mask(10, 10);
+        mask.setTileProperties(3, 4, 2, 1);
+
+        MaskEdit edit = new MaskEdit(mask);
+        edit.recordRect(new Rectangle(0, 0, 10, 10));
+        edit.recordTile(-1, 0); // outside : ignored
+        edit.recordTile(10, 0);
+        mask.setTileProperties(3, 4, 2, 1); // same value
+        mask.setTileProperties(6, 2, 1, 0);
+        mask.setTileProperties(8, 7, 3, 1);
+        assertTrue(edit.finish());
+        assertEquals(2, edit.getTileCount());
+        assertEquals(new Rectangle(6, 2, 3, 6), edit.getBounds());
+
+        MaskEdit nothing = new MaskEdit(mask);
+        nothing.recordRect(new Rectangle(0, 0, 5, 5));
+        assertFalse(nothing.finish());
+
+        UndoHistory history = new UndoHistory();
+        history.push(nothing);
+        assertEquals(0, history.getUndoCount());
+    }
+
+    // changed, then set back to its first value in the same edit : nothing to undo
+    @Test
+    public void tileRecordedTwiceAndSetBack() {
+        Mask mask = new Mask(4, 4);
+        mask.setTileProperties(1, 1, 2, 1);
+        byte[] before = packedBytes(mask);
+
+        MaskEdit edit = new MaskEdit(mask);
+        edit.recordTile(1, 1);
+        mask.setTileProperties(1, 1, 3, 0);
+        edit.recordTile(1, 1);
+        mask.setTileProperties(1, 1, 2, 1);
+        edit.recordTile(2, 1);
+        mask.setTileProperties(2, 1, 1, 0);
+        assertTrue(edit.finish());
+        assertEquals(1, edit.getTileCount());
+
+        edit.undo();
+        assertArrayEquals(before, packedBytes(mask));
+    }
+
+    @Test
+    public void newEditClearsRedoHistory() {
+        Mask mask = new Mask(4, 4);
+        UndoHistory history = new UndoHistory();
+        history.push(setTile(mask, 0, 0, 1));
+        history.push(setTile(mask, 1, 0, 2));
+        long memory = history.getMemoryUsed();
+
+        history.undo();
+        assertEquals(1, history.getRedoCount());
+        history.push(setTile(mask, 2, 0, 3));
+        assertEquals(0, history.getRedoCount());
+        assertEquals(2, history.getUndoCount());
+        assertEquals(memory, history.getMemoryUsed());
+        assertNull(history.redo());
+
+        // the dropped edit is not replayed
+        history.undo();
+        history.undo();
+        assertArrayEquals(packedBytes(new Mask(4, 4)), packedBytes(mask));
+    }
+
+    @Test
+    public void oldestEditsAreEvicted() {
+        Mask mask = new Mask(16, 16);
+        long editSize = setTile(new Mask(16, 16), 0, 0, 1).getMemorySize();
+        UndoHistory history = new UndoHistory(editSize * 3);
+
+        List<byte[]> states = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            states.add(packedBytes(mask));
+            history.push(setTile(mask, i, i, 1 + i % 3));
+            assertTrue(history.getMemoryUsed() <= editSize * 3);
+        }
+        assertEquals(3, history.getUndoCount());
+
+        // only the last 3 edits can be undone
+        for (int i = 0; i < 3; i++) {
+            history.undo();
+        }
+        assertNull(history.undo());
+        assertArrayEquals(states.get(7), packedBytes(mask));
+
+        // an edit bigger than the budget is still kept
+        UndoHistory small = new UndoHistory(10);
+        MaskEdit edit = setTile(mask, 0, 0, 3);
+        small.push(edit);
+        assertEquals(1, small.getUndoCount());
+        assertSame(edit, small.undo());
+    }
+
+    // 1024x1024 edits of the whole mask are about 6 MB each : the default budget keeps 5 of them
+    @Test
+    public void defaultBudgetIs32Mb() {
+        assertEquals(32L * 1024 * 1024, UndoHistory.DEFAULT_MEMORY_LIMIT);
+
+        Mask mask = new Mask(1024, 1024);
+        TileStore store = mask.getTileStore();
+        UndoHistory history = new UndoHistory();
+        long editSize = 0;
+        for (int i = 1; i <= 8; i++) {
+            MaskEdit edit = new MaskEdit(mask);
+            edit.recordRect(new Rectangle(0, 0, 1024, 1024));
+            store.fill(0, store.size(), TileStore.pack(i % 4, i / 4 % 2));
+            assertTrue(edit.finish());
+            editSize = edit.getMemorySize();
+            history.push(edit);
+        }
+        assertEquals(UndoHistory.DEFAULT_MEMORY_LIMIT / editSize, history.getUndoCount());
+        assertTrue(history.getMemoryUsed() <= UndoHistory.DEFAULT_MEMORY_LIMIT);
+    }
+
+
+    private static MaskEdit setTile(Mask mask, int x, int y, int palette) {
+        MaskEdit edit = new MaskEdit(mask);
+        edit.recordTile(x, y);
+        mask.setTileProperties(x, y, palette, 0);
+        edit.finish();
+        return edit;
+    }
+
+    static byte[] packedBytes(Mask mask) {
+        TileStore store = mask.getTileStore();
+        byte[] bytes = new byte[store.size()];
+        store.get(0, bytes, 0, bytes.length);
+        return bytes;
+    }
+}